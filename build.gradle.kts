@@ -1,5 +1,6 @@
 plugins {
     alias(libs.plugins.shadow)
+    alias(libs.plugins.jmh)
     java
 }
 
@@ -36,6 +37,22 @@ dependencies {
     compileOnly(libs.proxyQueuesApi)
 
     annotationProcessor(libs.velocityApi)
+
+    jmh(libs.velocityApi)
+    jmh(libs.proxyQueuesApi)
+    jmh(libs.mockito)
+
+    testImplementation(libs.velocityApi)
+    testImplementation(libs.proxyQueuesApi)
+    testImplementation(platform(libs.junitBom))
+    testImplementation(libs.junitJupiter)
+    testRuntimeOnly(libs.junitPlatformLauncher)
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
 }
 
 tasks {
@@ -47,6 +64,10 @@ tasks {
     processResources {
         expand("version" to project.version)
     }
+
+    test {
+        useJUnitPlatform()
+    }
 }
 
 tasks {
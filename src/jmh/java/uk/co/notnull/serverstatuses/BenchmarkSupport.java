@@ -0,0 +1,68 @@
+package uk.co.notnull.serverstatuses;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared fixtures for the status pipeline benchmarks
+ */
+final class BenchmarkSupport {
+	private static boolean messagesLoaded = false;
+
+	private BenchmarkSupport() {
+	}
+
+	/**
+	 * Loads the bundled messages.yml into the shared MessagesHelper, as the plugin does on startup
+	 */
+	static synchronized void loadMessages() throws IOException {
+		if(messagesLoaded) {
+			return;
+		}
+
+		File messages = File.createTempFile("messages", ".yml");
+		messages.deleteOnExit();
+
+		try (InputStream in = BenchmarkSupport.class.getClassLoader().getResourceAsStream("messages.yml")) {
+			Files.copy(in, messages.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		ServerStatuses.getMessagesHelper().loadMessages(messages);
+		messagesLoaded = true;
+	}
+
+	static Component motd(int parts) {
+		Component motd = Component.empty();
+
+		for (int i = 0; i < parts; i++) {
+			motd = motd.append(Component.text("Welcome to the server, part " + i + " ",
+											  i % 2 == 0 ? NamedTextColor.GOLD : NamedTextColor.AQUA));
+		}
+
+		return motd;
+	}
+
+	static Map<String, ServerStatus> statuses(int count) {
+		Map<String, ServerStatus> statuses = new LinkedHashMap<>();
+		Status[] values = Status.values();
+
+		for (int i = 0; i < count; i++) {
+			statuses.put("server-" + i, ServerStatus.builder()
+					.status(values[i % values.length])
+					.players(i % 100)
+					.queued(i % 7)
+					.motd(motd(i % 5 + 1))
+					.build());
+		}
+
+		return statuses;
+	}
+}
@@ -0,0 +1,54 @@
+package uk.co.notnull.serverstatuses;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done by StatusInformer.generatePayload when its cache misses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadBenchmark {
+	@Param({"10", "100", "1000"})
+	public int servers;
+
+	@Param({"JSON", "BINARY"})
+	public PayloadEncoder.Format format;
+
+	private Map<String, ServerStatus> statuses;
+	private PayloadEncoder encoder;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkSupport.loadMessages();
+
+		statuses = BenchmarkSupport.statuses(servers);
+		encoder = new PayloadEncoder("benchmark-secret".getBytes(StandardCharsets.UTF_8), 512);
+
+		// Render lines up front so only serialisation and signing are measured
+		encoder.encode(statuses, null, 0, format);
+	}
+
+	@Benchmark
+	public byte[] generatePayload() throws Exception {
+		return encoder.encode(statuses, null, 0, format);
+	}
+}
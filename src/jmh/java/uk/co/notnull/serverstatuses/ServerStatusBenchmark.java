@@ -0,0 +1,70 @@
+package uk.co.notnull.serverstatuses;
+
+import net.kyori.adventure.text.Component;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerStatusBenchmark {
+	@Param({"1", "50"})
+	public int motdParts;
+
+	private Component motd;
+	private ServerStatus status;
+	private ServerStatus equalStatus;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		BenchmarkSupport.loadMessages();
+
+		motd = BenchmarkSupport.motd(motdParts);
+		status = ServerStatus.builder().status(Status.ONLINE).players(20).queued(3).motd(motd).build();
+		// Built from a separate tree so equality has to compare the motd contents
+		equalStatus = ServerStatus.builder().status(Status.ONLINE).players(20).queued(3)
+				.motd(BenchmarkSupport.motd(motdParts)).build();
+	}
+
+	@Benchmark
+	public ServerStatus construct() {
+		return status.toBuilder().players(21).build();
+	}
+
+	@Benchmark
+	public String[] constructAndRender() {
+		StatusRenderCache.invalidate();
+		return status.toBuilder().players(21).build().getSeparateLines();
+	}
+
+	@Benchmark
+	public String[] constructAndRenderCached() {
+		return status.toBuilder().players(21).build().getSeparateLines();
+	}
+
+	@Benchmark
+	public boolean equalsLargeMotd() {
+		return status.equals(equalStatus);
+	}
+
+	@Benchmark
+	public int hashCodeLargeMotd() {
+		return status.hashCode();
+	}
+}
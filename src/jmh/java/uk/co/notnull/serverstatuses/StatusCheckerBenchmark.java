@@ -0,0 +1,121 @@
+package uk.co.notnull.serverstatuses;
+
+import com.mattmalec.pterodactyl4j.UtilizationState;
+import com.mattmalec.pterodactyl4j.client.ws.events.StatusUpdateEvent;
+import com.velocitypowered.api.event.EventManager;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import com.velocitypowered.api.proxy.server.ServerPing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+import org.spongepowered.configurate.BasicConfigurationNode;
+import uk.co.notnull.serverstatuses.history.HistoryStore;
+import uk.co.notnull.serverstatuses.metrics.Metrics;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures StatusChecker.handlePingResponse, alone and while the websocket thread is applying status updates
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusCheckerBenchmark {
+	private StatusChecker checker;
+	private ServerPing changedPing;
+	private ServerPing unchangedPing;
+	private StatusUpdateEvent running;
+	private StatusUpdateEvent starting;
+
+	@State(Scope.Thread)
+	public static class Toggle {
+		private boolean value = false;
+
+		boolean next() {
+			value = !value;
+			return value;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchmarkSupport.loadMessages();
+
+		ProxyServer proxy = mock(ProxyServer.class, withSettings().stubOnly());
+		when(proxy.getEventManager()).thenReturn(mock(EventManager.class, withSettings().stubOnly()));
+
+		PingScheduler pingScheduler = mock(PingScheduler.class, withSettings().stubOnly());
+		when(pingScheduler.getIntervalPolicy()).thenReturn(new PingIntervalPolicy(3000, 1000, 15000, 60000));
+
+		ServerStatuses plugin = mock(ServerStatuses.class, withSettings().stubOnly());
+		when(plugin.getProxy()).thenReturn(proxy);
+		when(plugin.getLogger()).thenReturn(NOPLogger.NOP_LOGGER);
+		when(plugin.getPingScheduler()).thenReturn(pingScheduler);
+		when(plugin.getMetrics()).thenReturn(new Metrics());
+		when(plugin.getHistoryStore()).thenReturn(new HistoryStore());
+		when(plugin.getStatusSnapshots()).thenReturn(new StatusSnapshots());
+		when(plugin.getStatusDamping()).thenReturn(new StatusDamping(3, 2, 5000, 30000, 3, 1.5));
+		// Run websocket callbacks on the calling benchmark thread
+		when(plugin.getExecutor()).thenReturn(Runnable::run);
+
+		RegisteredServer server = mock(RegisteredServer.class, withSettings().stubOnly());
+		when(server.getServerInfo()).thenReturn(new ServerInfo("benchmark", new InetSocketAddress(25565)));
+
+		checker = new StatusChecker(server, BasicConfigurationNode.root(), null, plugin);
+
+		ServerPing.Version version = new ServerPing.Version(767, "1.21.1");
+		changedPing = new ServerPing(version, new ServerPing.Players(11, 100, Collections.emptyList()),
+									 BenchmarkSupport.motd(5), null);
+		unchangedPing = new ServerPing(version, new ServerPing.Players(10, 100, Collections.emptyList()),
+									   BenchmarkSupport.motd(5), null);
+
+		running = mock(StatusUpdateEvent.class, withSettings().stubOnly());
+		when(running.getState()).thenReturn(UtilizationState.RUNNING);
+		starting = mock(StatusUpdateEvent.class, withSettings().stubOnly());
+		when(starting.getState()).thenReturn(UtilizationState.STARTING);
+
+		checker.handlePingResponse(unchangedPing);
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	public void pingUnchanged() {
+		checker.handlePingResponse(unchangedPing);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public void ping(Toggle toggle) {
+		checker.handlePingResponse(toggle.next() ? changedPing : unchangedPing);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public void websocket(Toggle toggle) {
+		checker.onStatusUpdate(toggle.next() ? running : starting);
+	}
+}
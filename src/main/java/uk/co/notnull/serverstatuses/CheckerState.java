@@ -0,0 +1,194 @@
+package uk.co.notnull.serverstatuses;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable snapshot of everything a {@link StatusChecker} knows about its server.
+ * Checkers hold the current state in an AtomicReference and replace it with compare-and-set,
+ * so the ping completion and pterodactyl websocket threads never block each other or readers.
+ * Each "with" method returns this instance unchanged if the value is already set, so no-op transitions can be detected
+ * by reference.
+ */
+final class CheckerState {
+	private final @NotNull ServerStatus status;
+	private final int failedPings;
+	private final int successfulPings;
+	private final boolean websocketConnected;
+	private final long statusPolledAt;
+	private final boolean pingInFlight;
+	private final long lastChange;
+	private final double flapPenalty;
+	private final long flapPenaltyTime;
+	private final boolean suppressed;
+
+	private CheckerState(@NotNull ServerStatus status, int failedPings, int successfulPings, boolean websocketConnected,
+						 long statusPolledAt, boolean pingInFlight, long lastChange, double flapPenalty,
+						 long flapPenaltyTime, boolean suppressed) {
+		this.status = status;
+		this.failedPings = failedPings;
+		this.successfulPings = successfulPings;
+		this.websocketConnected = websocketConnected;
+		this.statusPolledAt = statusPolledAt;
+		this.pingInFlight = pingInFlight;
+		this.lastChange = lastChange;
+		this.flapPenalty = flapPenalty;
+		this.flapPenaltyTime = flapPenaltyTime;
+		this.suppressed = suppressed;
+	}
+
+	static CheckerState initial(@NotNull ServerStatus status) {
+		long now = System.currentTimeMillis();
+		return new CheckerState(status, 0, 0, false, 0, false, now, 0, now, false);
+	}
+
+	@NotNull ServerStatus getStatus() {
+		return status;
+	}
+
+	int getFailedPings() {
+		return failedPings;
+	}
+
+	int getSuccessfulPings() {
+		return successfulPings;
+	}
+
+	boolean isWebsocketConnected() {
+		return websocketConnected;
+	}
+
+	/**
+	 * @param now The current time in milliseconds
+	 * @param maxAge Milliseconds for which a polled status is trusted
+	 * @return Whether the status was last provided by polling pterodactyl over REST while the websocket is down,
+	 * recently enough to still be trusted
+	 */
+	boolean isStatusPolled(long now, long maxAge) {
+		return statusPolledAt != 0 && now - statusPolledAt <= maxAge;
+	}
+
+	/**
+	 * @param now The current time in milliseconds
+	 * @param maxPollAge Milliseconds for which a polled status is trusted
+	 * @return Whether pterodactyl is currently providing the status, so ping results should not override it
+	 */
+	boolean isStatusFromPterodactyl(long now, long maxPollAge) {
+		return websocketConnected || isStatusPolled(now, maxPollAge);
+	}
+
+	boolean isPingInFlight() {
+		return pingInFlight;
+	}
+
+	/**
+	 * @return The time in milliseconds at which the {@link Status} last changed
+	 */
+	long getLastChange() {
+		return lastChange;
+	}
+
+	/**
+	 * @return The flap penalty as of {@link #getFlapPenaltyTime()}
+	 */
+	double getFlapPenalty() {
+		return flapPenalty;
+	}
+
+	long getFlapPenaltyTime() {
+		return flapPenaltyTime;
+	}
+
+	/**
+	 * @return Whether ping results are currently prevented from changing the status, due to the flap penalty
+	 */
+	boolean isSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * Returns a state with the given server status
+	 * The current status instance is kept if the new one is equal to it.
+	 */
+	CheckerState withStatus(@NotNull ServerStatus status) {
+		if(status.equals(this.status)) {
+			return this;
+		}
+
+		long lastChange = status.getStatus() != this.status.getStatus() ? System.currentTimeMillis() : this.lastChange;
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	CheckerState withFailedPings(int failedPings) {
+		if(failedPings == this.failedPings) {
+			return this;
+		}
+
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	CheckerState withSuccessfulPings(int successfulPings) {
+		if(successfulPings == this.successfulPings) {
+			return this;
+		}
+
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	CheckerState withFlapPenalty(double flapPenalty, long flapPenaltyTime, boolean suppressed) {
+		if(flapPenalty == this.flapPenalty && flapPenaltyTime == this.flapPenaltyTime
+				&& suppressed == this.suppressed) {
+			return this;
+		}
+
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	CheckerState withWebsocketConnected(boolean websocketConnected) {
+		if(websocketConnected == this.websocketConnected) {
+			return this;
+		}
+
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	/**
+	 * @param statusPolledAt The time in milliseconds the status was polled, or 0 if it is not being polled
+	 */
+	CheckerState withStatusPolled(long statusPolledAt) {
+		if(statusPolledAt == this.statusPolledAt) {
+			return this;
+		}
+
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	CheckerState withPingInFlight(boolean pingInFlight) {
+		if(pingInFlight == this.pingInFlight) {
+			return this;
+		}
+
+		return new CheckerState(status, failedPings, successfulPings, websocketConnected, statusPolledAt, pingInFlight,
+								lastChange, flapPenalty, flapPenaltyTime, suppressed);
+	}
+
+	@Override
+	public String toString() {
+		return "CheckerState{" +
+				"status=" + status +
+				", failedPings=" + failedPings +
+				", successfulPings=" + successfulPings +
+				", websocketConnected=" + websocketConnected +
+				", statusPolledAt=" + statusPolledAt +
+				", pingInFlight=" + pingInFlight +
+				", lastChange=" + lastChange +
+				", flapPenalty=" + flapPenalty +
+				", suppressed=" + suppressed +
+				'}';
+	}
+}
@@ -0,0 +1,36 @@
+package uk.co.notnull.serverstatuses;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * A server which is sent status packets, along with the payload format it expects and the servers it watches
+ */
+final class InformTarget {
+	private final RegisteredServer server;
+	private final PayloadEncoder.Format format;
+	private final @Nullable Set<String> watchedServers;
+
+	InformTarget(RegisteredServer server, PayloadEncoder.Format format, @Nullable Set<String> watchedServers) {
+		this.server = server;
+		this.format = format;
+		this.watchedServers = watchedServers != null ? Set.copyOf(watchedServers) : null;
+	}
+
+	RegisteredServer getServer() {
+		return server;
+	}
+
+	PayloadEncoder.Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return Names of the servers to send statuses for, or null for all servers
+	 */
+	@Nullable Set<String> getWatchedServers() {
+		return watchedServers;
+	}
+}
@@ -0,0 +1,306 @@
+package uk.co.notnull.serverstatuses;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Serialises and signs status packet payloads.
+ * The Gson instance is shared, and the encoder keeps a single Mac initialised with the secret, so rebuilding a payload
+ * does not need to look up the algorithm or create a new key. Encoders are not thread safe, and are only used while
+ * holding the owning StatusInformer's lock.
+ *
+ * <p>Payloads are encoded either as json, or in a compact binary format laid out as follows:</p>
+ * <pre>
+ * byte     format version (1)
+ * byte     flags (1 = body deflated, 2 = incremental protocol, 4 = delta packet)
+ * varlong  sequence number, incremental protocol only
+ * body     deflated if flagged:
+ *   varint   string table size, followed by each string as a varint length and utf-8 bytes
+ *   varint   server count, followed by each server as:
+ *     varint   server name string index
+ *     byte     status, as the ordinal of {@link Status}
+ *     varint   players online
+ *     varint   players queued
+ *     varint   lockdown reason string index + 1, 0 if none
+ *     varint   line 1 string index
+ *     varint   line 2 string index
+ * byte[64] raw HmacSHA512 of everything preceding it
+ * </pre>
+ * <p>The string table holds each distinct server name and rendered line once, and the combined lines are left out,
+ * as receivers can join the two separate lines with a newline themselves.</p>
+ */
+final class PayloadEncoder {
+	private static final String ALGORITHM = "HmacSHA512";
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapter(ServerStatus.class, new ServerStatusSerializer()).create();
+	private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+	private static final int BINARY_VERSION = 1;
+	private static final int FLAG_DEFLATED = 1;
+	private static final int FLAG_INCREMENTAL = 2;
+	private static final int FLAG_DELTA = 4;
+
+	private final SecretKeySpec keySpec;
+	private final int compressionThreshold;
+	private Mac mac = null;
+	private final Deflater deflater = new Deflater();
+
+	/**
+	 * @param secret The secret used to sign payloads
+	 * @param compressionThreshold Binary payload body size in bytes above which the body is deflated, or -1 to never
+	 *                             deflate
+	 */
+	PayloadEncoder(byte[] secret, int compressionThreshold) {
+		this.keySpec = new SecretKeySpec(secret, ALGORITHM);
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * Releases the native resources of the deflater. The encoder must not be used afterwards.
+	 */
+	void close() {
+		deflater.end();
+	}
+
+	byte[] encode(Map<String, ServerStatus> statuses, PacketType type, long seq, Format format)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+		return format == Format.BINARY ? encodeBinary(statuses, type, seq) : encodeJson(statuses, type, seq);
+	}
+
+	/**
+	 * Generates a signed status packet payload
+	 * In the full protocol the hmac covers the servers json alone. In the incremental protocol it covers
+	 * "{type}:{seq}:{servers json}", so that the packet type and sequence number cannot be altered.
+	 * @param statuses The statuses to include
+	 * @param type The packet type, or null for the full protocol
+	 * @param seq The sequence number of the packet, ignored for the full protocol
+	 * @return The payload
+	 */
+	byte[] encodeJson(Map<String, ServerStatus> statuses, PacketType type, long seq)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+		Mac hmac = getMac();
+		String statusJson = gson.toJson(statuses);
+		Map<String, Object> payload;
+
+		if(type == null) {
+			byte[] macData = hmac.doFinal(statusJson.getBytes(StandardCharsets.UTF_8));
+
+			payload = Map.of(
+					"hmac", byteArrayToHex(macData),
+					"servers", statusJson
+			);
+		} else {
+			String signed = type.getId() + ":" + seq + ":" + statusJson;
+			byte[] macData = hmac.doFinal(signed.getBytes(StandardCharsets.UTF_8));
+
+			payload = Map.of(
+					"hmac", byteArrayToHex(macData),
+					"servers", statusJson,
+					"type", type.getId(),
+					"seq", seq
+			);
+		}
+
+		return gson.toJson(payload).getBytes();
+	}
+
+	/**
+	 * Generates a signed status packet payload in the binary format
+	 * @param statuses The statuses to include
+	 * @param type The packet type, or null for the full protocol
+	 * @param seq The sequence number of the packet, ignored for the full protocol
+	 * @return The payload
+	 */
+	byte[] encodeBinary(Map<String, ServerStatus> statuses, PacketType type, long seq)
+			throws NoSuchAlgorithmException, InvalidKeyException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(64 + statuses.size() * 32);
+		Map<String, Integer> stringIndexes = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		ByteArrayOutputStream entries = new ByteArrayOutputStream(statuses.size() * 8);
+
+		statuses.forEach((name, status) -> {
+			String lockdownReason = status.getLockdownReason();
+
+			writeVarInt(entries, intern(name, stringIndexes, strings));
+			entries.write(status.getStatus().ordinal());
+			writeVarInt(entries, status.getPlayersOnline());
+			writeVarInt(entries, status.getPlayersQueued());
+			writeVarInt(entries, lockdownReason != null ? intern(lockdownReason, stringIndexes, strings) + 1 : 0);
+			writeVarInt(entries, intern(status.getSeparateLine(0), stringIndexes, strings));
+			writeVarInt(entries, intern(status.getSeparateLine(1), stringIndexes, strings));
+		});
+
+		writeVarInt(body, strings.size());
+
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(body, bytes.length);
+			body.writeBytes(bytes);
+		}
+
+		writeVarInt(body, statuses.size());
+		entries.writeTo(body);
+
+		byte[] bodyBytes = body.toByteArray();
+		int flags = 0;
+
+		if(compressionThreshold >= 0 && bodyBytes.length > compressionThreshold) {
+			bodyBytes = deflate(bodyBytes);
+			flags |= FLAG_DEFLATED;
+		}
+
+		if(type != null) {
+			flags |= FLAG_INCREMENTAL;
+
+			if(type == PacketType.DELTA) {
+				flags |= FLAG_DELTA;
+			}
+		}
+
+		Mac hmac = getMac();
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(bodyBytes.length + hmac.getMacLength() + 12);
+		payload.write(BINARY_VERSION);
+		payload.write(flags);
+
+		if(type != null) {
+			writeVarLong(payload, seq);
+		}
+
+		payload.writeBytes(bodyBytes);
+		hmac.update(payload.toByteArray());
+		payload.writeBytes(hmac.doFinal());
+
+		return payload.toByteArray();
+	}
+
+	private byte[] deflate(byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+		byte[] buffer = new byte[1024];
+
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+
+		return out.toByteArray();
+	}
+
+	private static int intern(String string, Map<String, Integer> indexes, List<String> strings) {
+		return indexes.computeIfAbsent(string, (k) -> {
+			strings.add(k);
+			return strings.size() - 1;
+		});
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write(value);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.write((int) value);
+	}
+
+	private Mac getMac() throws NoSuchAlgorithmException, InvalidKeyException {
+		if(mac == null) {
+			Mac hmac = Mac.getInstance(ALGORITHM);
+			hmac.init(keySpec);
+			mac = hmac;
+		}
+
+		return mac;
+	}
+
+	private static String byteArrayToHex(byte[] a) {
+		char[] hex = new char[a.length * 2];
+
+		for (int i = 0; i < a.length; i++) {
+			hex[i * 2] = hexDigits[(a[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = hexDigits[a[i] & 0xF];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * Writes statuses with the same fields and ordering as reflective serialisation would,
+	 * using the getters so that lazily rendered lines are included.
+	 */
+	private static final class ServerStatusSerializer implements JsonSerializer<ServerStatus> {
+		@Override
+		public JsonElement serialize(ServerStatus status, Type type, JsonSerializationContext context) {
+			JsonObject object = new JsonObject();
+			JsonArray separateLines = new JsonArray(2);
+
+			object.addProperty("status", status.getStatus().name());
+			object.addProperty("playersOnline", status.getPlayersOnline());
+			object.addProperty("playersQueued", status.getPlayersQueued());
+
+			if(status.getLockdownReason() != null) {
+				object.addProperty("lockdownReason", status.getLockdownReason());
+			}
+
+			separateLines.add(status.getSeparateLine(0));
+			separateLines.add(status.getSeparateLine(1));
+			object.add("separateLines", separateLines);
+			object.addProperty("combinedLines", status.getCombinedLines());
+
+			return object;
+		}
+	}
+
+	enum Format {
+		JSON,
+		BINARY;
+
+		public static Format fromString(String format) {
+			return format != null && format.toLowerCase(Locale.ROOT).equals("binary") ? BINARY : JSON;
+		}
+	}
+
+	enum PacketType {
+		FULL("full"),
+		DELTA("delta");
+
+		private final String id;
+
+		PacketType(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package uk.co.notnull.serverstatuses;
+
+/**
+ * Decides how often each server should be pinged.
+ * Servers that are changing state, failing pings or have players waiting in a queue are pinged at the minimum interval,
+ * while servers that have been stable for a while with a connected pterodactyl websocket back off towards the maximum.
+ * In websocket authoritative mode, servers with a connected websocket are only pinged at a slow refresh interval
+ * to update player counts and motds, as the websocket already provides their status.
+ */
+public final class PingIntervalPolicy {
+	private final long interval;
+	private final long minInterval;
+	private final long maxInterval;
+	private final long stableAfter;
+	private final boolean websocketAuthoritative;
+	private final long websocketRefreshInterval;
+
+	public PingIntervalPolicy(long interval, long minInterval, long maxInterval, long stableAfter) {
+		this(interval, minInterval, maxInterval, stableAfter, false, maxInterval);
+	}
+
+	public PingIntervalPolicy(long interval, long minInterval, long maxInterval, long stableAfter,
+							  boolean websocketAuthoritative, long websocketRefreshInterval) {
+		this.interval = interval;
+		this.minInterval = Math.min(minInterval, interval);
+		this.maxInterval = Math.max(maxInterval, interval);
+		this.stableAfter = stableAfter;
+		this.websocketAuthoritative = websocketAuthoritative;
+		this.websocketRefreshInterval = Math.max(websocketRefreshInterval, interval);
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Calculates the interval to use for the next ping of a server
+	 * @param status The last known status of the server
+	 * @param failedPings The number of consecutive failed pings
+	 * @param websocketConnected Whether the server's pterodactyl websocket is connected
+	 * @param stableFor Milliseconds since the server's status last changed
+	 * @param current The interval currently in use for the server
+	 * @return The interval in milliseconds
+	 */
+	public long nextInterval(ServerStatus status, int failedPings, boolean websocketConnected, long stableFor, long current) {
+		Status state = status.getStatus();
+
+		// Full rate pinging resumes automatically once the websocket fails or its token expires
+		if(websocketAuthoritative && websocketConnected) {
+			return websocketRefreshInterval;
+		}
+
+		if(state == Status.STARTING || state == Status.STOPPING || failedPings > 0 || status.getPlayersQueued() > 0) {
+			return minInterval;
+		}
+
+		if(websocketConnected && stableFor >= stableAfter) {
+			return Math.min(Math.max(current, interval) * 2, maxInterval);
+		}
+
+		return interval;
+	}
+}
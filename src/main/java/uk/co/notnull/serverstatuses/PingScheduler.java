@@ -0,0 +1,206 @@
+package uk.co.notnull.serverstatuses;
+
+import com.velocitypowered.api.scheduler.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single shared scheduler for all status checker pings.
+ * Each checker is given a phase offset within the ping interval so that pings are spread evenly over time,
+ * rather than every server being pinged in the same burst.
+ * The number of pings in flight at once is limited, and due pings are started fastest server first, so that slow
+ * servers are the ones left waiting for the next tick when the limit is reached. Servers left waiting for longer than
+ * their interval are moved to the front, so they are delayed but never starved.
+ */
+public final class PingScheduler {
+	private static final long TICK_MILLIS = 50;
+	private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+	private final ConcurrentHashMap<StatusChecker, Entry> entries = new ConcurrentHashMap<>();
+	private final ScheduledTask tickTask;
+
+	private volatile PingIntervalPolicy intervalPolicy;
+	private volatile double jitter;
+	private volatile int maxInFlight;
+	private volatile long pingTimeout;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private int registrations = 0;
+
+	/**
+	 * @param maxInFlight Maximum number of pings to have in flight at once
+	 * @param pingTimeout Milliseconds after which a ping is abandoned and counted as failed
+	 */
+	public PingScheduler(ServerStatuses plugin, PingIntervalPolicy intervalPolicy, double jitter, int maxInFlight,
+						 long pingTimeout) {
+		configure(intervalPolicy, jitter, maxInFlight, pingTimeout);
+
+		tickTask = plugin.getProxy().getScheduler()
+				.buildTask(plugin, this::tick).repeat(TICK_MILLIS, TimeUnit.MILLISECONDS).schedule();
+	}
+
+	public void configure(PingIntervalPolicy intervalPolicy, double jitter, int maxInFlight, long pingTimeout) {
+		this.intervalPolicy = intervalPolicy;
+		this.jitter = Math.max(0, Math.min(jitter, 1));
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.pingTimeout = Math.max(TICK_MILLIS, pingTimeout);
+	}
+
+	public PingIntervalPolicy getIntervalPolicy() {
+		return intervalPolicy;
+	}
+
+	public long getPingTimeout() {
+		return pingTimeout;
+	}
+
+	public void register(StatusChecker checker) {
+		entries.computeIfAbsent(checker, (k) -> {
+			// Golden ratio sequence keeps offsets evenly spread however many checkers are registered
+			double phase;
+
+			synchronized (this) {
+				phase = (registrations++ * GOLDEN_RATIO_FRACTION) % 1;
+			}
+
+			return new Entry(System.nanoTime() + (long) (phase * getInterval(checker)));
+		});
+	}
+
+	/**
+	 * Brings forward the next ping of the given checker if its current deadline is further away than its interval.
+	 * Called when a checker's interval shrinks, so that a server backed off to the maximum interval is checked promptly.
+	 */
+	public void reschedule(StatusChecker checker) {
+		Entry entry = entries.get(checker);
+
+		if(entry == null) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long interval = getInterval(checker);
+
+		synchronized (entry) {
+			if(entry.deadline - now > interval) {
+				entry.slot = now + interval;
+				entry.deadline = entry.slot;
+			}
+		}
+	}
+
+	public void unregister(StatusChecker checker) {
+		entries.remove(checker);
+	}
+
+	public void destroy() {
+		tickTask.cancel();
+		entries.clear();
+	}
+
+	private void tick() {
+		long now = System.nanoTime();
+		List<Due> due = new ArrayList<>();
+
+		entries.forEach((checker, entry) -> {
+			long overdue;
+
+			synchronized (entry) {
+				overdue = now - entry.deadline;
+			}
+
+			if(overdue >= 0) {
+				due.add(new Due(checker, overdue, overdue >= getInterval(checker), checker.getLastLatency()));
+			}
+		});
+
+		// Checkers overdue by more than their interval go first, most overdue first, so slow servers can't be starved
+		// Latencies are captured beforehand, as pings completing during the sort would otherwise break its ordering
+		due.sort(Comparator.comparing(Due::starved).reversed()
+						 .thenComparing((a, b) -> a.starved()
+								 ? Long.compare(b.overdue(), a.overdue())
+								 : Long.compare(a.latency(), b.latency())));
+
+		for (Due next : due) {
+			StatusChecker checker = next.checker();
+
+			// Leave the remaining checkers due, so they are pinged on a later tick once pings complete
+			if(!acquire()) {
+				return;
+			}
+
+			if(!checker.pingServer(this::release)) {
+				release();
+			}
+
+			Entry entry = entries.get(checker);
+
+			if(entry == null) {
+				continue;
+			}
+
+			long interval = getInterval(checker);
+
+			synchronized (entry) {
+				// Advance along the phase grid, skipping any slots missed while the proxy was busy
+				entry.slot += interval;
+
+				if(now - entry.slot >= 0) {
+					entry.slot = now + interval;
+				}
+
+				entry.deadline = entry.slot + jitter(interval);
+			}
+		}
+	}
+
+	private boolean acquire() {
+		int current;
+
+		do {
+			current = inFlight.get();
+
+			if(current >= maxInFlight) {
+				return false;
+			}
+		} while (!inFlight.compareAndSet(current, current + 1));
+
+		return true;
+	}
+
+	private void release() {
+		inFlight.decrementAndGet();
+	}
+
+	private static long getInterval(StatusChecker checker) {
+		return TimeUnit.MILLISECONDS.toNanos(Math.max(checker.getPingInterval(), TICK_MILLIS));
+	}
+
+	private long jitter(long interval) {
+		long range = (long) (interval * jitter);
+
+		if(range <= 0) {
+			return 0;
+		}
+
+		return ThreadLocalRandom.current().nextLong(range) - range / 2;
+	}
+
+	private record Due(StatusChecker checker, long overdue, boolean starved, long latency) {
+	}
+
+	private static final class Entry {
+		private long slot;
+		private long deadline;
+
+		private Entry(long slot) {
+			this.slot = slot;
+			this.deadline = slot;
+		}
+	}
+}
@@ -2,21 +2,113 @@ package uk.co.notnull.serverstatuses;
 
 import com.velocitypowered.api.plugin.PluginContainer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.scheduler.ScheduledTask;
 import uk.co.notnull.proxyqueues.api.ProxyQueues;
 import uk.co.notnull.proxyqueues.api.QueueType;
 import uk.co.notnull.proxyqueues.api.queues.ProxyQueue;
 
-public class ProxyQueuesHandler {
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Wraps the ProxyQueues api, caching the queue of each server so it is only looked up once.
+ * Queue sizes of watched servers are refreshed by a single task and cached, and each watcher is notified as soon as
+ * its count changes, so checkers don't need to query queues on every ping.
+ */
+public final class ProxyQueuesHandler {
 	private final ServerStatuses plugin;
 	private final ProxyQueues proxyQueues;
 
+	// Only existing queues are cached, others are looked up again in case ProxyQueues creates them later
+	private final ConcurrentHashMap<RegisteredServer, ProxyQueue> queues = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<RegisteredServer, Watcher> watchers = new ConcurrentHashMap<>();
+	private ScheduledTask refreshTask;
+
 	public ProxyQueuesHandler(ServerStatuses plugin, PluginContainer proxyQueues) {
 		this.plugin = plugin;
 		this.proxyQueues = (ProxyQueues) proxyQueues.getInstance().get();
+		this.refreshTask = scheduleRefresh(250);
 	}
 
-	public int getQueuedPlayers(RegisteredServer server) {
-		ProxyQueue queue = proxyQueues.getQueueHandler().getQueue(server);
+	/**
+	 * @param refreshInterval Milliseconds between checks of watched queue sizes
+	 */
+	public synchronized void setRefreshInterval(long refreshInterval) {
+		if(refreshTask != null) {
+			refreshTask.cancel();
+		}
+
+		refreshTask = scheduleRefresh(refreshInterval);
+	}
+
+	private ScheduledTask scheduleRefresh(long refreshInterval) {
+		return plugin.getProxy().getScheduler().buildTask(plugin, this::refresh)
+				.repeat(Math.max(50, refreshInterval), TimeUnit.MILLISECONDS).schedule();
+	}
+
+	/**
+	 * Clears all cached queues, in case ProxyQueues has recreated them
+	 */
+	public void invalidate() {
+		queues.clear();
+	}
+
+	public synchronized void destroy() {
+		if(refreshTask != null) {
+			refreshTask.cancel();
+			refreshTask = null;
+		}
+
+		watchers.clear();
+		queues.clear();
+	}
+
+	/**
+	 * Starts keeping the queued player count of the given server up to date
+	 * @param server The server to watch, replacing any existing watcher for it
+	 * @param listener Called with the new count whenever it changes
+	 */
+	public void watch(RegisteredServer server, IntConsumer listener) {
+		Watcher watcher = new Watcher(listener);
+		watcher.queued = countQueuedPlayers(server);
+		watchers.put(server, watcher);
+	}
+
+	/**
+	 * Stops watching the given server, if the listener is the one currently watching it
+	 */
+	public void unwatch(RegisteredServer server, IntConsumer listener) {
+		watchers.computeIfPresent(server, (key, watcher) -> watcher.listener == listener ? null : watcher);
+	}
+
+	private void refresh() {
+		watchers.forEach((server, watcher) -> {
+			int queued = countQueuedPlayers(server);
+
+			if(queued != watcher.queued) {
+				watcher.queued = queued;
+				watcher.listener.accept(queued);
+			}
+		});
+	}
+
+	private ProxyQueue getQueue(RegisteredServer server) {
+		ProxyQueue queue = queues.get(server);
+
+		if(queue == null) {
+			queue = proxyQueues.getQueueHandler().getQueue(server);
+
+			if(queue != null) {
+				queues.put(server, queue);
+			}
+		}
+
+		return queue;
+	}
+
+	private int countQueuedPlayers(RegisteredServer server) {
+		ProxyQueue queue = getQueue(server);
 
 		if (queue == null) {
 			return 0;
@@ -26,8 +118,17 @@ public class ProxyQueuesHandler {
 				+ queue.getQueueSize(QueueType.STAFF);
 	}
 
+	/**
+	 * @return The cached queued player count if the server is watched, otherwise the current count
+	 */
+	public int getQueuedPlayers(RegisteredServer server) {
+		Watcher watcher = watchers.get(server);
+
+		return watcher != null ? watcher.queued : countQueuedPlayers(server);
+	}
+
 	public boolean hasPause(RegisteredServer server) {
-		ProxyQueue queue = proxyQueues.getQueueHandler().getQueue(server);
+		ProxyQueue queue = getQueue(server);
 
 		if (queue == null) {
 			return false;
@@ -37,7 +138,7 @@ public class ProxyQueuesHandler {
 	}
 
 	public void pause(RegisteredServer server) {
-		ProxyQueue queue = proxyQueues.getQueueHandler().getQueue(server);
+		ProxyQueue queue = getQueue(server);
 
 		if (queue == null) {
 			return;
@@ -47,7 +148,7 @@ public class ProxyQueuesHandler {
 	}
 
 	public void unpause(RegisteredServer server) {
-		ProxyQueue queue = proxyQueues.getQueueHandler().getQueue(server);
+		ProxyQueue queue = getQueue(server);
 
 		if (queue == null) {
 			return;
@@ -55,5 +156,13 @@ public class ProxyQueuesHandler {
 
 		queue.removePause(plugin);
 	}
-}
 
+	private static final class Watcher {
+		private final IntConsumer listener;
+		private volatile int queued;
+
+		private Watcher(IntConsumer listener) {
+			this.listener = listener;
+		}
+	}
+}
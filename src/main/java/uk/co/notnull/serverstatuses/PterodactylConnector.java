@@ -0,0 +1,320 @@
+package uk.co.notnull.serverstatuses;
+
+import com.mattmalec.pterodactyl4j.UtilizationState;
+import com.mattmalec.pterodactyl4j.client.entities.ClientServer;
+import com.mattmalec.pterodactyl4j.client.entities.PteroClient;
+import com.mattmalec.pterodactyl4j.client.entities.Utilization;
+import com.mattmalec.pterodactyl4j.client.managers.WebSocketManager;
+import com.mattmalec.pterodactyl4j.client.ws.hooks.ClientSocketListener;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Opens pterodactyl websocket connections for status checkers.
+ * All of the client's servers are resolved with a single paginated listing when created, rather than one request per
+ * checker, and websockets are then connected with a limit on how many can be connecting at once.
+ *
+ * <p>Servers whose websocket is down can also be registered for polling. Their resource utilisation is then retrieved
+ * over REST in a single rate limited sweep, as the client api has no endpoint returning the state of several servers
+ * at once.</p>
+ */
+public final class PterodactylConnector {
+	private static final long SETTLE_TIMEOUT = 10;
+
+	private final ServerStatuses plugin;
+	private final Logger logger;
+	private final PteroClient client;
+	private volatile int maxConcurrentConnects;
+	private volatile long pollRateLimit;
+	private volatile long pollInterval = 0;
+
+	private final CompletableFuture<Void> resolved = new CompletableFuture<>();
+	private final ConcurrentHashMap<String, ClientServer> servers = new ConcurrentHashMap<>();
+	private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger connecting = new AtomicInteger(0);
+
+	private final ConcurrentHashMap<String, Consumer<UtilizationState>> polled = new ConcurrentHashMap<>();
+	private final AtomicBoolean sweeping = new AtomicBoolean(false);
+	private ScheduledTask pollTask = null;
+
+	/**
+	 * @param plugin The plugin
+	 * @param client The pterodactyl client to use
+	 * @param maxConcurrentConnects Maximum number of websockets to be connecting at once
+	 * @param pollInterval Seconds between utilisation polling sweeps, 0 to disable polling
+	 * @param pollRateLimit Maximum utilisation requests per second during a sweep
+	 */
+	public PterodactylConnector(ServerStatuses plugin, PteroClient client, int maxConcurrentConnects,
+								long pollInterval, long pollRateLimit) {
+		this.plugin = plugin;
+		this.logger = plugin.getLogger();
+		this.client = client;
+
+		configure(maxConcurrentConnects, pollInterval, pollRateLimit);
+
+		client.retrieveServers().all().executeAsync(this::onServersRetrieved, (e) -> {
+			logger.warn("Failed to list pterodactyl servers, resolving them individually instead: " + e.getMessage());
+			resolved.complete(null);
+		});
+	}
+
+	/**
+	 * Applies new limits without reconnecting, rescheduling the polling sweep if its interval has changed
+	 * @param maxConcurrentConnects Maximum number of websockets to be connecting at once
+	 * @param pollInterval Seconds between utilisation polling sweeps, 0 to disable polling
+	 * @param pollRateLimit Maximum utilisation requests per second during a sweep
+	 */
+	public synchronized void configure(int maxConcurrentConnects, long pollInterval, long pollRateLimit) {
+		this.maxConcurrentConnects = Math.max(1, maxConcurrentConnects);
+		this.pollRateLimit = Math.max(1, pollRateLimit);
+
+		pollInterval = Math.max(0, pollInterval);
+
+		if(pollInterval != this.pollInterval) {
+			this.pollInterval = pollInterval;
+
+			if(pollTask != null) {
+				pollTask.cancel();
+			}
+
+			pollTask = pollInterval > 0 ? plugin.getProxy().getScheduler().buildTask(plugin, this::sweep)
+					.repeat(pollInterval, TimeUnit.SECONDS).schedule() : null;
+		}
+
+		// Start any connections a raised limit now allows
+		startPending();
+	}
+
+	private void onServersRetrieved(List<ClientServer> list) {
+		for (ClientServer server : list) {
+			servers.put(server.getIdentifier(), server);
+		}
+
+		logger.info("Resolved {} pterodactyl servers", servers.size());
+		resolved.complete(null);
+	}
+
+	public synchronized void destroy() {
+		if(pollTask != null) {
+			pollTask.cancel();
+			pollTask = null;
+		}
+
+		pollInterval = 0;
+
+		polled.clear();
+	}
+
+	/**
+	 * Retrieves a server, from the bulk listing if it was included, or individually otherwise
+	 */
+	private void retrieveServer(String identifier, Consumer<ClientServer> success, Consumer<Throwable> failure) {
+		ClientServer server = servers.get(identifier);
+
+		if(server != null) {
+			success.accept(server);
+			return;
+		}
+
+		client.retrieveServerByIdentifier(identifier).executeAsync((retrieved) -> {
+			servers.put(identifier, retrieved);
+			success.accept(retrieved);
+		}, failure);
+	}
+
+	/**
+	 * Starts polling the given server's utilisation state in the fallback sweep
+	 * Servers are registered even while polling is disabled, so they are picked up if it is enabled by a reload.
+	 * @param identifier The pterodactyl server identifier
+	 * @param callback Called with the polled state, or null if polling failed
+	 */
+	public void startPolling(String identifier, Consumer<UtilizationState> callback) {
+		polled.put(identifier, callback);
+	}
+
+	public void stopPolling(String identifier) {
+		polled.remove(identifier);
+	}
+
+	/**
+	 * Polls all registered servers, spacing requests out to stay within the rate limit
+	 * A sweep is skipped if the previous one is still in progress.
+	 */
+	private void sweep() {
+		if(polled.isEmpty() || !sweeping.compareAndSet(false, true)) {
+			return;
+		}
+
+		List<Map.Entry<String, Consumer<UtilizationState>>> entries = new ArrayList<>(polled.entrySet());
+		AtomicInteger remaining = new AtomicInteger(entries.size());
+		long spacing = 1000 / pollRateLimit;
+
+		Runnable completed = () -> {
+			if(remaining.decrementAndGet() == 0) {
+				sweeping.set(false);
+			}
+		};
+
+		for (int i = 0; i < entries.size(); i++) {
+			Map.Entry<String, Consumer<UtilizationState>> entry = entries.get(i);
+
+			plugin.getProxy().getScheduler().buildTask(plugin, () -> poll(entry.getKey(), entry.getValue(), completed))
+					.delay(i * spacing, TimeUnit.MILLISECONDS).schedule();
+		}
+	}
+
+	private void poll(String identifier, Consumer<UtilizationState> callback, Runnable completed) {
+		// Skip servers whose websocket recovered since the sweep started
+		if(polled.get(identifier) != callback) {
+			completed.run();
+			return;
+		}
+
+		Consumer<Throwable> failure = (e) -> {
+			logger.debug("Failed to poll utilization for pterodactyl server " + identifier + ": " + e.getMessage());
+			callback.accept(null);
+			completed.run();
+		};
+
+		retrieveServer(identifier, (server) -> server.retrieveUtilization().executeAsync((Utilization utilization) -> {
+			if(polled.get(identifier) == callback) {
+				callback.accept(utilization.getState());
+			}
+
+			completed.run();
+		}, failure), failure);
+	}
+
+	/**
+	 * @return Seconds between utilisation polling sweeps, 0 if polling is disabled
+	 */
+	public long getPollInterval() {
+		return pollInterval;
+	}
+
+	public PteroClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Queues a websocket connection to the given server
+	 * @param identifier The pterodactyl server identifier
+	 * @param listener The listener to add to the websocket
+	 * @param onConnected Called with the websocket once it has been created
+	 * @return The pending connection. Must be settled once the websocket authenticates or fails, to allow
+	 * further connections to start.
+	 */
+	public Connection connect(String identifier, ClientSocketListener listener, Consumer<WebSocketManager> onConnected) {
+		Connection connection = new Connection(identifier, listener, onConnected);
+
+		resolved.thenRun(() -> {
+			pending.add(connection);
+			startPending();
+		});
+
+		return connection;
+	}
+
+	private void startPending() {
+		while (!pending.isEmpty()) {
+			int current = connecting.get();
+
+			if(current >= maxConcurrentConnects) {
+				return;
+			}
+
+			if(!connecting.compareAndSet(current, current + 1)) {
+				continue;
+			}
+
+			Connection connection = pending.poll();
+
+			if(connection == null) {
+				connecting.decrementAndGet();
+				return;
+			}
+
+			connection.start();
+		}
+	}
+
+	public final class Connection {
+		private final String identifier;
+		private final ClientSocketListener listener;
+		private final Consumer<WebSocketManager> onConnected;
+		private final AtomicBoolean started = new AtomicBoolean(false);
+		private final AtomicBoolean settled = new AtomicBoolean(false);
+		private volatile boolean cancelled = false;
+
+		private Connection(String identifier, ClientSocketListener listener, Consumer<WebSocketManager> onConnected) {
+			this.identifier = identifier;
+			this.listener = listener;
+			this.onConnected = onConnected;
+		}
+
+		private void start() {
+			started.set(true);
+
+			if(cancelled) {
+				settle();
+				return;
+			}
+
+			// Don't let a connection that never reports back hold its slot forever
+			plugin.getProxy().getScheduler().buildTask(plugin, this::settle)
+					.delay(SETTLE_TIMEOUT, TimeUnit.SECONDS).schedule();
+
+			retrieveServer(identifier, this::build, (e) -> {
+				logger.warn("Failed to retrieve pterodactyl server " + identifier + ": " + e.getMessage());
+				settle();
+			});
+		}
+
+		private void build(ClientServer server) {
+			if(cancelled) {
+				settle();
+				return;
+			}
+
+			WebSocketManager websocket = server.getWebSocketBuilder().addEventListeners(listener).build();
+
+			if(cancelled) {
+				websocket.shutdown();
+				settle();
+				return;
+			}
+
+			onConnected.accept(websocket);
+		}
+
+		/**
+		 * Marks the connection as no longer connecting, allowing the next queued connection to start
+		 */
+		public void settle() {
+			if(started.get() && settled.compareAndSet(false, true)) {
+				connecting.decrementAndGet();
+				startPending();
+			}
+		}
+
+		/**
+		 * Cancels the connection, if it has not yet been made
+		 */
+		public void cancel() {
+			cancelled = true;
+			settle();
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package uk.co.notnull.serverstatuses;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks one at a time, in submission order, on top of another executor.
+ * Used where ordering matters, such as websocket events for a single server or informer sends.
+ */
+final class SerialExecutor implements Executor {
+	private final Supplier<Executor> executor;
+	private final Queue<Runnable> tasks = new ArrayDeque<>();
+	private boolean running = false;
+
+	/**
+	 * @param executor Supplies the executor to run tasks on. Looked up for each batch, so it can be replaced on reload.
+	 */
+	SerialExecutor(Supplier<Executor> executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+
+			if(running) {
+				return;
+			}
+
+			running = true;
+		}
+
+		executor.get().execute(this::drain);
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable task;
+
+			synchronized (tasks) {
+				task = tasks.poll();
+
+				if(task == null) {
+					running = false;
+					return;
+				}
+			}
+
+			try {
+				task.run();
+			} catch (Throwable e) {
+				// Keep draining the remaining tasks elsewhere before propagating
+				executor.get().execute(this::drain);
+				throw e;
+			}
+		}
+	}
+}
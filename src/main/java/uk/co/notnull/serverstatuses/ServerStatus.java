@@ -1,78 +1,52 @@
 package uk.co.notnull.serverstatuses;
 
 import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.ComponentLike;
-import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
-import uk.co.notnull.messageshelper.Message;
-import uk.co.notnull.messageshelper.MessagesHelper;
-
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+
 import java.util.Objects;
 
 public class ServerStatus {
-	private static final GsonComponentSerializer gsonComponentSerializer = GsonComponentSerializer.builder().build();
-
 	private final Status status;
 	private final int playersOnline;
 	private final int playersQueued;
 	private final String lockdownReason;
-	private final String[] separateLines = {"", ""};
-	private String combinedLines = "";
 
 	private transient final Component motd;
 
+	// Hash of the motd, computed once so comparing statuses doesn't need to walk the component tree
+	private transient final int motdFingerprint;
+
+	// Rendered lazily, as most statuses built from pings are equal to the previous status and discarded
+	private transient volatile StatusRenderCache.Lines lines = null;
+
 	public ServerStatus(Status status, int playersOnline, int playersQueued, Component motd, String lockdownReason) {
+		this(status, playersOnline, playersQueued, motd, fingerprint(motd), lockdownReason);
+	}
+
+	ServerStatus(Status status, int playersOnline, int playersQueued, Component motd, int motdFingerprint,
+				 String lockdownReason) {
 		this.status = status;
 		this.playersOnline = playersOnline;
 		this.playersQueued = playersQueued;
 		this.motd = motd;
+		this.motdFingerprint = motdFingerprint;
 		this.lockdownReason = lockdownReason;
-
-		prepareComponents();
 	}
 
-	private void prepareComponents() {
-		Map<String, String> placeholders = new HashMap<>();
-		List<String> playerStatus = new ArrayList<>();
-		Map<String, ComponentLike> componentPlaceholders = Collections.singletonMap(
-				"motd", motd != null ? motd : Component.empty());
-
-		MessagesHelper helper = ServerStatuses.getMessagesHelper();
-
-		if (status.isOnline()) {
-			playerStatus.add(helper.getString("players.online"));
-		}
-
-		if (playersQueued > 0 || !status.isOnline()) {
-			playerStatus.add(helper.getString("players.queued"));
-		}
+	static int fingerprint(Component motd) {
+		return motd != null ? motd.hashCode() : 0;
+	}
 
-		placeholders.put("players", String.join(", ", playerStatus));
-		placeholders.put("queued", String.valueOf(playersQueued));
-		placeholders.put("online", String.valueOf(playersOnline));
+	private StatusRenderCache.Lines getLines() {
+		StatusRenderCache.Lines lines = this.lines;
 
-		if(lockdownReason != null) {
-			placeholders.put("lockdownreason", lockdownReason);
+		if(lines == null || lines.getGeneration() != StatusRenderCache.getGeneration()) {
+			lines = StatusRenderCache.get(
+					new StatusRenderCache.Key(status, playersOnline, playersQueued, motd, motdFingerprint,
+											 lockdownReason));
+			this.lines = lines;
 		}
 
-		String messageKey = status.getMessageKey();
-		Component line1 = helper.getComponent(Message.builder(String.format("%s.line-1", messageKey))
-													  .stringReplacements(placeholders)
-													  .componentReplacements(componentPlaceholders)
-													  .build());
-		Component line2 = helper.getComponent(Message.builder(String.format("%s.line-2", messageKey))
-													  .stringReplacements(placeholders)
-													  .componentReplacements(componentPlaceholders).build());
-
-		separateLines[0] = gsonComponentSerializer.serialize(line1);
-		separateLines[1] = gsonComponentSerializer.serialize(line2);
-
-		combinedLines = gsonComponentSerializer.serialize(
-				Component.empty().append(line1).append(Component.newline()).append(line2));
+		return lines;
 	}
 
 	public Status getStatus() {
@@ -99,12 +73,23 @@ public class ServerStatus {
 		return lockdownReason;
 	}
 
+	/**
+	 * @return A copy of the two rendered status lines, as the rendered lines are shared between statuses
+	 */
 	public String[] getSeparateLines() {
-		return separateLines;
+		return getLines().getSeparateLines().clone();
+	}
+
+	/**
+	 * Returns one of the rendered status lines without copying them
+	 * @param index 0 for the first line, 1 for the second
+	 */
+	String getSeparateLine(int index) {
+		return getLines().getSeparateLines()[index];
 	}
 
 	public String getCombinedLines() {
-		return combinedLines;
+		return getLines().getCombinedLines();
 	}
 
 	@Override
@@ -112,14 +97,15 @@ public class ServerStatus {
 		if (this == o) return true;
 		if (o == null || getClass() != o.getClass()) return false;
 		ServerStatus that = (ServerStatus) o;
+		// Motds are usually the same interned instance, so the full comparison is only reached on fingerprint collisions
 		return getStatus().equals(
-				that.getStatus()) && getPlayersOnline() == that.getPlayersOnline() && getPlayersQueued() == that.getPlayersQueued() && Objects.equals(
-				getMotd(), that.getMotd());
+				that.getStatus()) && getPlayersOnline() == that.getPlayersOnline() && getPlayersQueued() == that.getPlayersQueued()
+				&& motdFingerprint == that.motdFingerprint && (motd == that.motd || Objects.equals(getMotd(), that.getMotd()));
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(isOnline(), getPlayersOnline(), getPlayersQueued(), getMotd());
+		return Objects.hash(isOnline(), getPlayersOnline(), getPlayersQueued(), motdFingerprint);
 	}
 
 	@Override
@@ -133,7 +119,8 @@ public class ServerStatus {
 	}
 
 	public Builder toBuilder() {
-		return builder().status(status).players(playersOnline).queued(playersQueued).motd(motd).lockdown(lockdownReason);
+		return builder().status(status).players(playersOnline).queued(playersQueued).motd(motd, motdFingerprint)
+				.lockdown(lockdownReason);
 	}
 
 	public static Builder builder() {
@@ -149,6 +136,8 @@ public class ServerStatus {
 
 		private Component motd = null;
 
+		private int motdFingerprint = 0;
+
 		private String lockdownReason;
 
 		public Builder() {
@@ -175,7 +164,15 @@ public class ServerStatus {
 		}
 
 		public Builder motd(Component motd) {
+			return motd(motd, fingerprint(motd));
+		}
+
+		/**
+		 * Sets the motd along with its already computed fingerprint, avoiding hashing it again
+		 */
+		Builder motd(Component motd, int fingerprint) {
 			this.motd = motd;
+			this.motdFingerprint = fingerprint;
 
 			return this;
 		}
@@ -191,7 +188,7 @@ public class ServerStatus {
 		}
 
 		public ServerStatus build() {
-			return new ServerStatus(status, playersOnline, playersQueued, motd, lockdownReason);
+			return new ServerStatus(status, playersOnline, playersQueued, motd, motdFingerprint, lockdownReason);
 		}
 	}
 }
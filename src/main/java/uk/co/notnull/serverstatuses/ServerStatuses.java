@@ -3,9 +3,10 @@ package uk.co.notnull.serverstatuses;
 import com.google.common.io.ByteStreams;
 import com.google.inject.Inject;
 import com.mattmalec.pterodactyl4j.PteroBuilder;
-import com.mattmalec.pterodactyl4j.client.entities.PteroClient;
 import com.mojang.brigadier.Command;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.builder.RequiredArgumentBuilder;
 import com.mojang.brigadier.tree.LiteralCommandNode;
 import com.velocitypowered.api.command.BrigadierCommand;
 import com.velocitypowered.api.command.CommandManager;
@@ -14,15 +15,25 @@ import com.velocitypowered.api.command.CommandSource;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.proxy.ProxyReloadEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.PluginContainer;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.spongepowered.configurate.ConfigurationNode;
 import org.spongepowered.configurate.yaml.YamlConfigurationLoader;
 import org.slf4j.Logger;
 import uk.co.notnull.messageshelper.Message;
 import uk.co.notnull.messageshelper.MessagesHelper;
+import uk.co.notnull.serverstatuses.api.ServerStatusesAPI;
+import uk.co.notnull.serverstatuses.history.HistorySample;
+import uk.co.notnull.serverstatuses.history.HistoryStore;
+import uk.co.notnull.serverstatuses.history.StatusHistory;
+import uk.co.notnull.serverstatuses.metrics.Histogram;
+import uk.co.notnull.serverstatuses.metrics.Metrics;
+import uk.co.notnull.serverstatuses.metrics.PrometheusExporter;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -31,20 +42,38 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 
-public class ServerStatuses {
+public class ServerStatuses implements ServerStatusesAPI {
 	private final ProxyServer proxy;
 	private final Logger logger;
 	private final Path dataDirectory;
 
 	private StatusInformer statusInformer;
 	private final ConcurrentHashMap<RegisteredServer, StatusChecker> serverCheckers = new ConcurrentHashMap<>();
-	private PteroClient pterodactylClient = null;
+	private PterodactylConnector pterodactylConnector = null;
+	private String pterodactylUrl = "";
+	private String pterodactylKey = "";
+	private PingScheduler pingScheduler;
+	private volatile StatusDamping statusDamping;
+	private final Metrics metrics = new Metrics();
+	private final HistoryStore historyStore = new HistoryStore();
+	private final StatusSnapshots statusSnapshots = new StatusSnapshots();
+	private volatile StatusExecutor executor = null;
+	private PrometheusExporter prometheusExporter = null;
+	private StatusSnapshotStore snapshotStore = null;
 
 	private static final MessagesHelper messagesHelper = MessagesHelper.getInstance();
 
@@ -76,6 +105,38 @@ public class ServerStatuses {
 		loadConfig();
 	}
 
+	@Subscribe
+	public void onProxyShutdown(ProxyShutdownEvent event) {
+		serverCheckers.values().forEach(StatusChecker::destroy);
+		serverCheckers.clear();
+
+		if(pingScheduler != null) {
+			pingScheduler.destroy();
+		}
+
+		if(proxyQueuesHandler != null) {
+			proxyQueuesHandler.destroy();
+		}
+
+		if(snapshotStore != null) {
+			snapshotStore.save();
+			snapshotStore.destroy();
+		}
+
+		if(pterodactylConnector != null) {
+			pterodactylConnector.destroy();
+		}
+
+		if(prometheusExporter != null) {
+			prometheusExporter.stop();
+			prometheusExporter = null;
+		}
+
+		if(executor != null) {
+			executor.shutdown();
+		}
+	}
+
 	private void initCommand() {
 		CommandManager commandManager = getProxy().getCommandManager();
 
@@ -94,6 +155,198 @@ public class ServerStatuses {
 
         // BrigadierCommand implements Command
         commandManager.register(reloadMeta, new BrigadierCommand(reloadNode));
+
+		CommandMeta statsMeta = commandManager.metaBuilder("ssstats")
+				.plugin(this)
+				.build();
+
+		LiteralCommandNode<CommandSource> statsNode = LiteralArgumentBuilder
+				.<CommandSource>literal("ssstats")
+				.requires(source -> source.hasPermission("serverstatuses.stats"))
+				.executes(context -> {
+					sendStats(context.getSource());
+					return Command.SINGLE_SUCCESS;
+				}).build();
+
+		commandManager.register(statsMeta, new BrigadierCommand(statsNode));
+
+		CommandMeta statusMeta = commandManager.metaBuilder("ssstatus")
+				.plugin(this)
+				.build();
+
+		LiteralCommandNode<CommandSource> statusNode = LiteralArgumentBuilder
+				.<CommandSource>literal("ssstatus")
+				.requires(source -> source.hasPermission("serverstatuses.status"))
+				.then(RequiredArgumentBuilder.<CommandSource, String>argument("server", StringArgumentType.word())
+							  .suggests((context, builder) -> {
+								  historyStore.getHistories().keySet().stream()
+										  .filter(name -> name.toLowerCase().startsWith(builder.getRemainingLowerCase()))
+										  .sorted().forEach(builder::suggest);
+								  return builder.buildFuture();
+							  })
+							  .executes(context -> {
+								  sendHistory(context.getSource(), context.getArgument("server", String.class));
+								  return Command.SINGLE_SUCCESS;
+							  })).build();
+
+		commandManager.register(statusMeta, new BrigadierCommand(statusNode));
+	}
+
+	private void sendHistory(CommandSource source, String server) {
+		Optional<StatusHistory> history = historyStore.findHistory(server);
+
+		if(history.isEmpty()) {
+			messagesHelper.send(source, Message.builder("history.unknown")
+					.stringReplacements(Map.of("server", server)).build());
+			return;
+		}
+
+		ServerStatus status = getStatus(server);
+
+		messagesHelper.send(source, Message.builder("history.header").stringReplacements(Map.of(
+				"server", server,
+				"status", status != null ? status.getStatus().name().toLowerCase() : "unknown",
+				"players", String.valueOf(status != null ? status.getPlayersOnline() : 0),
+				"queued", String.valueOf(status != null ? status.getPlayersQueued() : 0)
+		)).build());
+
+		sendHistoryPeriod(source, history.get().getSamples(0));
+		sendHistoryPeriod(source, history.get().getDownsampledSamples(0));
+	}
+
+	private void sendHistoryPeriod(CommandSource source, List<HistorySample> samples) {
+		if(samples.isEmpty()) {
+			return;
+		}
+
+		int online = 0;
+		int players = 0;
+		int queued = 0;
+		int failures = 0;
+		long latencySum = 0;
+		int latencyCount = 0;
+
+		for (HistorySample sample : samples) {
+			online += sample.status().isOnline() ? 1 : 0;
+			players = Math.max(players, sample.players());
+			queued = Math.max(queued, sample.queued());
+			failures += sample.failures();
+
+			if(sample.latency() >= 0) {
+				latencySum += sample.latency();
+				latencyCount++;
+			}
+		}
+
+		long minutes = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - samples.get(0).time()));
+
+		messagesHelper.send(source, Message.builder("history.period").stringReplacements(Map.of(
+				"period", minutes >= 120 ? (minutes / 60) + " hours" : minutes + " minutes",
+				"uptime", String.format("%.1f", online * 100.0 / samples.size()),
+				"players", String.valueOf(players),
+				"queued", String.valueOf(queued),
+				"latency", latencyCount > 0 ? String.valueOf(latencySum / latencyCount) : "-",
+				"failures", String.valueOf(failures)
+		)).build());
+	}
+
+	private void sendStats(CommandSource source) {
+		long minutes = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - metrics.getStartTime()));
+
+		messagesHelper.send(source, Message.builder("stats.header").build());
+
+		new TreeMap<>(metrics.getServers()).forEach((name, server) -> {
+			Histogram latency = server.getPingLatency();
+			long p95 = latency.getPercentile(0.95);
+
+			messagesHelper.send(source, Message.builder("stats.server").stringReplacements(Map.of(
+					"server", name,
+					"pings", String.valueOf(latency.getCount()),
+					"failures", String.valueOf(server.getPingFailures()),
+					"latency", String.format("%.1f", latency.getMean()),
+					"p95", p95 >= 0 ? String.valueOf(p95) : ">" + latency.getBounds()[latency.getBounds().length - 1],
+					"reconnects", String.valueOf(server.getReconnects()),
+					"backoff", String.valueOf(server.getReconnectBackoff())
+			)).build());
+		});
+
+		messagesHelper.send(source, Message.builder("stats.informer").stringReplacements(Map.of(
+				"changes", String.valueOf(metrics.getStatusChanges()),
+				"rate", String.format("%.1f", (double) metrics.getStatusChanges() / minutes),
+				"generated", String.valueOf(metrics.getPayloadsGenerated()),
+				"size", String.format("%.0f", metrics.getPayloadSize().getMean()),
+				"sent", String.valueOf(metrics.getPacketsSent()),
+				"bytes", String.valueOf(metrics.getBytesSent())
+		)).build());
+	}
+
+	private void configureExecutor(ConfigurationNode config) {
+		boolean virtualThreads = config.node("virtual-threads").getBoolean(true);
+		int maxConcurrency = config.node("max-concurrency").getInt(32);
+
+		if(executor != null && executor.isVirtualThreads() == virtualThreads
+				&& executor.getMaxConcurrency() == maxConcurrency) {
+			return;
+		}
+
+		StatusExecutor previous = executor;
+		executor = new StatusExecutor(logger, this::getExecutor, virtualThreads, maxConcurrency);
+
+		if(previous != null) {
+			previous.drain();
+		}
+	}
+
+	private void configureMetrics(ConfigurationNode config) {
+		int port = config.node("prometheus-port").getInt(-1);
+
+		if(prometheusExporter != null && prometheusExporter.getPort() == port) {
+			return;
+		}
+
+		if(prometheusExporter != null) {
+			prometheusExporter.stop();
+			prometheusExporter = null;
+		}
+
+		if(port > 0) {
+			try {
+				prometheusExporter = new PrometheusExporter(metrics, port);
+				logger.info("Serving prometheus metrics on 127.0.0.1:" + port);
+			} catch (IOException e) {
+				logger.error("Failed to start prometheus metrics endpoint on port " + port, e);
+			}
+		}
+	}
+
+	private void configureDamping(ConfigurationNode config) {
+		ConfigurationNode minDwellNode = config.node("min-dwell");
+		Map<Status, Long> minDwellOverrides = new EnumMap<>(Status.class);
+		long minDwell;
+
+		// A single value applies to all statuses, a section can set a default and a value for each status
+		if(minDwellNode.isMap()) {
+			minDwell = minDwellNode.node("default").getLong(5000);
+
+			for (Status status : Status.values()) {
+				ConfigurationNode override = minDwellNode.node(status.name().toLowerCase(Locale.ROOT));
+
+				if(!override.virtual()) {
+					minDwellOverrides.put(status, override.getLong(minDwell));
+				}
+			}
+		} else {
+			minDwell = minDwellNode.getLong(5000);
+		}
+
+		statusDamping = new StatusDamping(
+				config.node("failure-threshold").getInt(3),
+				config.node("success-threshold").getInt(2),
+				minDwell,
+				minDwellOverrides,
+				config.node("penalty-half-life").getLong(30000),
+				config.node("suppress-limit").getDouble(3),
+				config.node("reuse-limit").getDouble(1.5));
 	}
 
 	private void loadConfig() {
@@ -102,12 +355,11 @@ public class ServerStatuses {
 		loadResource("messages.yml");
 
 
-		List<RegisteredServer> serversToInform = new ArrayList<>();
-		serverCheckers.values().forEach(StatusChecker::destroy);
-		serverCheckers.clear();
+		List<InformTarget> serversToInform = new ArrayList<>();
 
 		try {
 			messagesHelper.loadMessages(new File(dataDirectory.toAbsolutePath().toString(), "messages.yml"));
+			StatusRenderCache.invalidate();
 		} catch (IOException e) {
 			logger.error("Error loading messages.yml");
 		}
@@ -116,21 +368,81 @@ public class ServerStatuses {
 			ConfigurationNode configuration = YamlConfigurationLoader.builder().file(
 					new File(dataDirectory.toAbsolutePath().toString(), "config.yml")).build().load();
 
+			configureExecutor(configuration.node("executor"));
+
+			ConfigurationNode ping = configuration.node("ping");
+			PingIntervalPolicy pingIntervalPolicy = new PingIntervalPolicy(
+					ping.node("interval").getLong(3000),
+					ping.node("min-interval").getLong(1000),
+					ping.node("max-interval").getLong(15000),
+					ping.node("stable-after").getLong(60000),
+					ping.node("websocket-authoritative").getBoolean(false),
+					ping.node("websocket-refresh-interval").getLong(30000));
+			double pingJitter = ping.node("jitter").getDouble(0.1);
+
+			int maxPingsInFlight = ping.node("max-in-flight").getInt(32);
+			long pingTimeout = ping.node("timeout").getLong(5000);
+
+			if(pingScheduler == null) {
+				pingScheduler = new PingScheduler(this, pingIntervalPolicy, pingJitter, maxPingsInFlight, pingTimeout);
+			} else {
+				pingScheduler.configure(pingIntervalPolicy, pingJitter, maxPingsInFlight, pingTimeout);
+			}
+
+			configureDamping(configuration.node("damping"));
+
+			configureMetrics(configuration.node("metrics"));
+
+			ConfigurationNode history = configuration.node("history");
+			historyStore.configure(
+					history.node("raw-samples").getInt(600),
+					history.node("downsampled-samples").getInt(1440),
+					history.node("downsample-period").getLong(60000));
+			configureSnapshot(configuration.node("snapshot"));
+
+			if(proxyQueuesHandler != null) {
+				proxyQueuesHandler.invalidate();
+				proxyQueuesHandler.setRefreshInterval(
+						configuration.node("proxyqueues", "refresh-interval").getLong(250));
+			}
+
 			String pterodactylUrl = configuration.node("pterodactyl", "api-url").getString("");
 			String pterodactylKey = configuration.node("pterodactyl", "api-key").getString("");
 
-			if(!pterodactylUrl.isEmpty() && !pterodactylKey.isEmpty()) {
-				logger.info("Using pterodactyl");
-				pterodactylClient = PteroBuilder.createClient(pterodactylUrl, pterodactylKey);
+			// Keep the existing connector if unchanged, so checkers using it don't need recreating
+			if(!pterodactylUrl.equals(this.pterodactylUrl) || !pterodactylKey.equals(this.pterodactylKey)) {
+				this.pterodactylUrl = pterodactylUrl;
+				this.pterodactylKey = pterodactylKey;
+
+				if(pterodactylConnector != null) {
+					pterodactylConnector.destroy();
+					pterodactylConnector = null;
+				}
+
+				if(!pterodactylUrl.isEmpty() && !pterodactylKey.isEmpty()) {
+					logger.info("Using pterodactyl");
+					pterodactylConnector = new PterodactylConnector(this,
+							PteroBuilder.createClient(pterodactylUrl, pterodactylKey),
+							configuration.node("pterodactyl", "max-concurrent-connects").getInt(8),
+							configuration.node("pterodactyl", "fallback-poll-interval").getLong(10),
+							configuration.node("pterodactyl", "fallback-rate-limit").getLong(5));
+				}
+			} else if(pterodactylConnector != null) {
+				pterodactylConnector.configure(
+						configuration.node("pterodactyl", "max-concurrent-connects").getInt(8),
+						configuration.node("pterodactyl", "fallback-poll-interval").getLong(10),
+						configuration.node("pterodactyl", "fallback-rate-limit").getLong(5));
 			}
 
 			String secret = configuration.node("secret").getString();
 
-			if(secret == null) {
+			if(secret == null || secret.isEmpty()) {
 				logger.warn("No secret provided, server status packets will not be sent");
 			}
 
 			ConfigurationNode servers = configuration.node("servers");
+			ConfigurationNode groups = configuration.node("groups");
+			Set<RegisteredServer> serversToCheck = new HashSet<>();
 
 			if (!servers.virtual() && servers.isMap()) {
 				Map<Object, ? extends ConfigurationNode> children = servers.childrenMap();
@@ -143,27 +455,71 @@ public class ServerStatuses {
 					}
 
 					boolean check = child.node("check").getBoolean(false);
-					boolean inform = child.node("inform").getBoolean(false);
+					ConfigurationNode inform = child.node("inform");
 
 					if(check) {
-						logger.warn("Adding status checker for " + serverName);
-						serverCheckers.computeIfAbsent(server.get(), (k) ->
-								new StatusChecker(server.get(), child, pterodactylClient, this));
+						serversToCheck.add(server.get());
+						updateChecker(server.get(), child);
 					}
 
-					if(inform) {
+					if(inform.isList() || inform.raw() instanceof String || inform.getBoolean(false)) {
 						logger.warn("Adding status informer for " + serverName);
-						serversToInform.add(server.get());
+						serversToInform.add(new InformTarget(server.get(),
+								PayloadEncoder.Format.fromString(child.node("inform-format").getString("json")),
+								getWatchedServers(inform, groups)));
 					}
 				});
 			}
 
+			serverCheckers.entrySet().removeIf(entry -> {
+				if(serversToCheck.contains(entry.getKey())) {
+					return false;
+				}
+
+				logger.info("Removing status checker for " + entry.getKey().getServerInfo().getName());
+				entry.getValue().destroy();
+				return true;
+			});
+
+			Set<String> checkedNames = new HashSet<>();
+			serversToCheck.forEach(server -> checkedNames.add(server.getServerInfo().getName()));
+			historyStore.retain(checkedNames);
+			statusSnapshots.retain(checkedNames);
+			metrics.retain(checkedNames);
+
 			if(statusInformer == null) {
 				statusInformer = new StatusInformer(this, secret, serversToInform);
 			} else {
 				statusInformer.setSecret(secret);
 				statusInformer.setServersToInform(serversToInform);
 			}
+
+			if(snapshotStore != null) {
+				Map<String, ServerStatus> provisional = new HashMap<>();
+
+				for (RegisteredServer server : serversToCheck) {
+					String name = server.getServerInfo().getName();
+					ServerStatus status = snapshotStore.getProvisionalStatuses().get(name);
+
+					if(status != null) {
+						provisional.put(name, status);
+					}
+				}
+
+				statusInformer.addProvisionalStatuses(provisional);
+			}
+
+			statusInformer.setIncremental(
+					configuration.node("informer", "protocol").getString("full").equalsIgnoreCase("incremental"),
+					configuration.node("informer", "snapshot-interval").getLong(60));
+			statusInformer.setCompressionThreshold(
+					configuration.node("informer", "compression-threshold").getInt(512));
+			statusInformer.setCoalescing(
+					configuration.node("informer", "coalesce-window").getLong(100),
+					configuration.node("informer", "max-latency").getLong(500));
+
+			// Lines may have changed with messages.yml, so make sure informed servers aren't left with the old ones
+			statusInformer.resendStatuses();
 		} catch (IOException e) {
 			logger.error("Error loading config.yml");
 			e.printStackTrace();
@@ -171,6 +527,95 @@ public class ServerStatuses {
 		}
 	}
 
+	/**
+	 * Resolves the servers an informed server should be sent statuses for
+	 * Entries can be server names or names of groups defined in the groups section.
+	 * @param inform The server's inform configuration, either true, a single entry or a list of entries
+	 * @param groups The groups section
+	 * @return Set of server names, or null for all servers
+	 */
+	private Set<String> getWatchedServers(ConfigurationNode inform, ConfigurationNode groups) {
+		List<String> entries = new ArrayList<>();
+
+		if(inform.isList()) {
+			inform.childrenList().forEach(entry -> entries.add(entry.getString("")));
+		} else if(inform.raw() instanceof String) {
+			entries.add(inform.getString(""));
+		} else {
+			return null;
+		}
+
+		Set<String> watched = new HashSet<>();
+
+		for (String entry : entries) {
+			ConfigurationNode group = groups.node(entry);
+
+			if(group.isList()) {
+				group.childrenList().forEach(server -> watched.add(server.getString("")));
+			} else {
+				watched.add(entry);
+			}
+		}
+
+		return watched;
+	}
+
+	/**
+	 * Adds a status checker for the given server, or replaces the existing one if its configuration has changed
+	 * Unchanged checkers are left running, so their websocket connections and statuses are kept across reloads.
+	 * @param server The server to check
+	 * @param config The server's configuration
+	 */
+	private void updateChecker(RegisteredServer server, ConfigurationNode config) {
+		String serverName = server.getServerInfo().getName();
+		StatusChecker existing = serverCheckers.get(server);
+
+		if(existing != null && existing.isConfiguredBy(config, pterodactylConnector)) {
+			return;
+		}
+
+		ServerStatus initialStatus = null;
+
+		if(existing != null) {
+			logger.info("Updating status checker for " + serverName);
+			existing.destroy();
+			initialStatus = existing.getStatus();
+		} else {
+			logger.warn("Adding status checker for " + serverName);
+
+			if(snapshotStore != null) {
+				initialStatus = snapshotStore.getProvisionalStatuses().get(serverName);
+			}
+		}
+
+		serverCheckers.put(server, new StatusChecker(server, config, pterodactylConnector, this, initialStatus));
+	}
+
+	/**
+	 * Creates or removes the status snapshot store, depending on whether snapshots are enabled
+	 * Saved statuses are only loaded when the store is created, which is normally on startup.
+	 * @param config The snapshot configuration section
+	 */
+	private void configureSnapshot(ConfigurationNode config) {
+		boolean enabled = config.node("enabled").getBoolean(true);
+
+		if(!enabled) {
+			if(snapshotStore != null) {
+				snapshotStore.destroy();
+				snapshotStore = null;
+			}
+
+			return;
+		}
+
+		if(snapshotStore == null) {
+			snapshotStore = new StatusSnapshotStore(this, dataDirectory.resolve("statuses.json"),
+													config.node("max-age").getLong(300));
+		}
+
+		snapshotStore.setSaveDelay(config.node("save-delay").getLong(5));
+	}
+
 	private void loadResource(String resource) {
 		File folder = dataDirectory.toFile();
 
@@ -209,4 +654,48 @@ public class ServerStatuses {
 	ProxyQueuesHandler getProxyQueuesHandler() {
 		return proxyQueuesHandler;
 	}
+
+	PingScheduler getPingScheduler() {
+		return pingScheduler;
+	}
+
+	@Override
+	public @Nullable ServerStatus getStatus(@NotNull RegisteredServer server) {
+		return statusSnapshots.get().get(server.getServerInfo().getName());
+	}
+
+	@Override
+	public @Nullable ServerStatus getStatus(@NotNull String server) {
+		return statusSnapshots.get().get(server);
+	}
+
+	@Override
+	public @NotNull Map<String, ServerStatus> getStatuses() {
+		return statusSnapshots.get();
+	}
+
+	@Override
+	public @NotNull Optional<StatusHistory> getStatusHistory(@NotNull String server) {
+		return historyStore.findHistory(server);
+	}
+
+	StatusSnapshots getStatusSnapshots() {
+		return statusSnapshots;
+	}
+
+	HistoryStore getHistoryStore() {
+		return historyStore;
+	}
+
+	StatusDamping getStatusDamping() {
+		return statusDamping;
+	}
+
+	Metrics getMetrics() {
+		return metrics;
+	}
+
+	Executor getExecutor() {
+		return executor;
+	}
 }
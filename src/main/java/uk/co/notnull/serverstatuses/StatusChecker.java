@@ -1,7 +1,6 @@
 package uk.co.notnull.serverstatuses;
 
-import com.mattmalec.pterodactyl4j.client.entities.ClientServer;
-import com.mattmalec.pterodactyl4j.client.entities.PteroClient;
+import com.mattmalec.pterodactyl4j.UtilizationState;
 import com.mattmalec.pterodactyl4j.client.managers.WebSocketManager;
 import com.mattmalec.pterodactyl4j.client.ws.events.AuthSuccessEvent;
 import com.mattmalec.pterodactyl4j.client.ws.events.StatusUpdateEvent;
@@ -10,24 +9,33 @@ import com.mattmalec.pterodactyl4j.client.ws.events.token.TokenExpiredEvent;
 import com.mattmalec.pterodactyl4j.client.ws.events.token.TokenExpiringEvent;
 import com.mattmalec.pterodactyl4j.client.ws.hooks.ClientSocketListenerAdapter;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.PingOptions;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 import com.velocitypowered.api.proxy.server.ServerPing;
 import com.velocitypowered.api.scheduler.ScheduledTask;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.TextReplacementConfig;
 import net.kyori.adventure.text.minimessage.MiniMessage;
+import org.jetbrains.annotations.Nullable;
 import org.spongepowered.configurate.ConfigurationNode;
-import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import uk.co.notnull.serverstatuses.events.ServerStatusChangeEvent;
+import uk.co.notnull.serverstatuses.history.HistoryStore;
+import uk.co.notnull.serverstatuses.metrics.Metrics;
+import uk.co.notnull.serverstatuses.metrics.ServerMetrics;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.UnaryOperator;
 
 public final class StatusChecker extends ClientSocketListenerAdapter {
 
+	private static final long PING_TIMEOUT_GRACE = 1000;
 	private static final MiniMessage miniMessage = MiniMessage.miniMessage();
 	private static final TextReplacementConfig newlineRemoval = TextReplacementConfig.builder()
 			.match("\n").replacement("").build();
@@ -36,62 +44,125 @@ public final class StatusChecker extends ClientSocketListenerAdapter {
 	private final ServerStatuses plugin;
 	private final ProxyServer proxy;
 	private final Logger logger;
-	private final PteroClient pteroClient;
+	private final PterodactylConnector pterodactylConnector;
+	private final Metrics metrics;
+	private final ServerMetrics serverMetrics;
+	private final HistoryStore historyStore;
+	private final StatusSnapshots statusSnapshots;
+	private final Object publishLock = new Object();
 
 	private final RegisteredServer server;
-	private Component staticMotd = null;
+	private String rawMotd = "";
+	private InternedMotd staticMotd = null;
+	private volatile InternedMotd lastMotd = null;
 	private String pterodactylServerId = null;
-	private WebSocketManager websocket = null;
-	private final AtomicBoolean websocketConnected = new AtomicBoolean(false);
+	private volatile WebSocketManager websocket = null;
+	private volatile PterodactylConnector.Connection websocketConnection = null;
 	private ScheduledTask reconnectTask = null;
 	private final AtomicInteger reconnectBackoff = new AtomicInteger(1);
 
-	private final ReentrantLock lock = new ReentrantLock();
-	private final ScheduledTask pingTask;
-	private final AtomicBoolean pinging = new AtomicBoolean(false);
-	private final AtomicInteger failedPings = new AtomicInteger(0);
-	private @NotNull ServerStatus lastStatus = ServerStatus.builder().build();
+	private final PingScheduler pingScheduler;
+	private final SerialExecutor websocketExecutor;
+	private final IntConsumer queueListener = this::onQueuedPlayersChanged;
+	private final AtomicReference<CheckerState> state;
+	private volatile long pingInterval;
+	private volatile long lastLatency = 0;
+	private volatile boolean destroyed = false;
 
 
-	public StatusChecker(RegisteredServer server, ConfigurationNode config, PteroClient pteroClient, ServerStatuses plugin) {
+	public StatusChecker(RegisteredServer server, ConfigurationNode config, PterodactylConnector pterodactylConnector,
+						 ServerStatuses plugin) {
+		this(server, config, pterodactylConnector, plugin, null);
+	}
+
+	/**
+	 * @param initialStatus Status to start with, such as the status of a checker this one is replacing.
+	 *                      Defaults to offline if null.
+	 */
+	public StatusChecker(RegisteredServer server, ConfigurationNode config, PterodactylConnector pterodactylConnector,
+						 ServerStatuses plugin, @Nullable ServerStatus initialStatus) {
 		this.server = server;
+		this.state = new AtomicReference<>(CheckerState.initial(
+				initialStatus != null ? initialStatus : ServerStatus.builder().build()));
 		this.plugin = plugin;
 		this.logger = plugin.getLogger();
 		this.proxy = plugin.getProxy();
-		this.pteroClient = pteroClient;
+		this.pterodactylConnector = pterodactylConnector;
 		this.proxyQueuesHandler = plugin.getProxyQueuesHandler();
+		this.metrics = plugin.getMetrics();
+		this.serverMetrics = metrics.getServerMetrics(server.getServerInfo().getName());
+		this.historyStore = plugin.getHistoryStore();
+		this.statusSnapshots = plugin.getStatusSnapshots();
+
+		this.pingScheduler = plugin.getPingScheduler();
+		this.websocketExecutor = new SerialExecutor(plugin::getExecutor);
+		this.pingInterval = pingScheduler.getIntervalPolicy().getInterval();
 
 		loadConfig(config);
 
-		pingTask = plugin.getProxy().getScheduler()
-				.buildTask(plugin, () -> this.pingServer(server)).repeat(3, TimeUnit.SECONDS).schedule();
+		if(proxyQueuesHandler != null) {
+			proxyQueuesHandler.watch(server, queueListener);
+		}
+
+		publishStatus();
+		pingScheduler.register(this);
 	}
 
 	public void destroy() {
-		pingTask.cancel();
+		destroyed = true;
+		pingScheduler.unregister(this);
+
+		if(proxyQueuesHandler != null) {
+			proxyQueuesHandler.unwatch(server, queueListener);
+		}
+
+		if(pterodactylConnector != null) {
+			pterodactylConnector.stopPolling(pterodactylServerId);
+		}
+
 		disconnectWebsocket();
-		pinging.set(false);
+		transition(s -> s.withPingInFlight(false));
 	}
 
 	private void loadConfig(ConfigurationNode config) {
-		String motd = config.node("motd").getString("");
+		rawMotd = config.node("motd").getString("");
 		pterodactylServerId = config.node("pterodactyl-id").getString("");
-		staticMotd = motd.isEmpty() ? null : miniMessage.deserialize(motd);
+		staticMotd = rawMotd.isEmpty() ? null : InternedMotd.of(null, miniMessage.deserialize(rawMotd));
 
-		if(!pterodactylServerId.isEmpty()) {
+		if(!pterodactylServerId.isEmpty() && pterodactylConnector != null) {
 			connectWebsocket();
 		}
 	}
 
+	/**
+	 * Checks whether this checker was created with equivalent configuration, meaning it can be kept across a reload
+	 * @param config The server's new configuration
+	 * @param pterodactylConnector The new pterodactyl connector
+	 * @return Whether the configuration is unchanged
+	 */
+	boolean isConfiguredBy(ConfigurationNode config, PterodactylConnector pterodactylConnector) {
+		String pterodactylServerId = config.node("pterodactyl-id").getString("");
+
+		return rawMotd.equals(config.node("motd").getString(""))
+				&& this.pterodactylServerId.equals(pterodactylServerId)
+				&& (pterodactylServerId.isEmpty() || this.pterodactylConnector == pterodactylConnector);
+	}
+
 	private void connectWebsocket() {
-		pteroClient.retrieveServerByIdentifier(pterodactylServerId).map(ClientServer::getWebSocketBuilder)
-               .map(builder -> builder.addEventListeners(this)).executeAsync((builder) -> websocket = builder.build());
+		websocketConnection = pterodactylConnector.connect(pterodactylServerId, this,
+														   (websocket) -> this.websocket = websocket);
 	}
+
 	private void disconnectWebsocket() {
 		if(reconnectTask != null) {
 			reconnectTask.cancel();
 		}
 
+		if(websocketConnection != null) {
+			websocketConnection.cancel();
+			websocketConnection = null;
+		}
+
 		if(websocket != null) {
 			try {
 				websocket.shutdown();
@@ -101,32 +172,52 @@ public final class StatusChecker extends ClientSocketListenerAdapter {
 			}
 		}
 
-		websocketConnected.set(false);
+		transition(s -> s.withWebsocketConnected(false));
 	}
 
+	// Websocket callbacks are moved onto the plugin executor, one at a time per server to keep them in order
 	@Override
     public void onAuthSuccess(AuthSuccessEvent event) {
-		websocketConnected.set(true);
-		reconnectBackoff.set(1);
+		websocketExecutor.execute(() -> {
+			if(destroyed) {
+				return;
+			}
+
+			settleConnection();
+			pterodactylConnector.stopPolling(pterodactylServerId);
+			transition(s -> s.withWebsocketConnected(true).withStatusPolled(0));
+			reconnectBackoff.set(1);
+			serverMetrics.setReconnectBackoff(0);
+		});
     }
 
 	@Override
 	public void onStatusUpdate(StatusUpdateEvent event) {
-		lock.lock();
+		websocketExecutor.execute(() -> {
+			if(!destroyed) {
+				handleStatusUpdate(Status.fromUtilizationState(event.getState()));
+			}
+		});
+	}
 
-		try {
-			Status status = Status.fromUtilizationState(event.getState());
-			fireChangeEvent(lastStatus.toBuilder().status(status).build());
+	private void handleStatusUpdate(Status status) {
+		transition(s -> s.withStatus(s.getStatus().toBuilder().status(status).build()));
 
-			if(proxyQueuesHandler != null) {
-				if(!proxyQueuesHandler.hasPause(server) && !status.isOnline()) {
-					proxyQueuesHandler.pause(server);
-				} else if(status.isOnline()) {
-					proxyQueuesHandler.unpause(server);
-				}
+		if(proxyQueuesHandler != null) {
+			if(!proxyQueuesHandler.hasPause(server) && !status.isOnline()) {
+				proxyQueuesHandler.pause(server);
+			} else if(status.isOnline()) {
+				proxyQueuesHandler.unpause(server);
 			}
-		} finally {
-			lock.unlock();
+		}
+	}
+
+	/**
+	 * Publishes queued player count changes immediately, instead of waiting for the next ping
+	 */
+	private void onQueuedPlayersChanged(int queued) {
+		if(!destroyed) {
+			transition(s -> s.withStatus(s.getStatus().toBuilder().queued(queued).build()));
 		}
 	}
 
@@ -138,86 +229,289 @@ public final class StatusChecker extends ClientSocketListenerAdapter {
 	@Override
 	public void onTokenExpired(TokenExpiredEvent event) {
 		logger.warn("Token for pterodactyl websocket connection {} has expired", server.getServerInfo().getName());
+
+		// Don't rely on the websocket for liveness until it authenticates again
+		websocketExecutor.execute(() -> {
+			if(!destroyed) {
+				transition(s -> s.withWebsocketConnected(false));
+			}
+		});
 	}
 
 	@Override
 	public void onFailure(FailureEvent event) {
-		websocketConnected.set(false);
+		websocketExecutor.execute(() -> {
+			if(!destroyed) {
+				handleFailure(event);
+			}
+		});
+	}
+
+	private void handleFailure(FailureEvent event) {
+		settleConnection();
+		transition(s -> s.withWebsocketConnected(false));
+
+		// Poll the server's state over REST until the websocket reconnects
+		pterodactylConnector.startPolling(pterodactylServerId, this::onUtilizationPolled);
+
 		logger.warn("Pterodactyl websocket connection for {} failed. Reconnecting in {} seconds...", server.getServerInfo().getName(), reconnectBackoff.get());
 		event.getThrowable().printStackTrace();
 
 		int backoffTime = reconnectBackoff.getAndUpdate(x -> Math.min(2 * x, 60));
+		serverMetrics.recordReconnect(backoffTime);
 		reconnectTask = proxy.getScheduler()
 				.buildTask(plugin, () -> event.getWebSocketManager().reconnect())
 				.delay(backoffTime, TimeUnit.SECONDS).schedule();
 	}
 
-	private void pingServer(RegisteredServer server) {
-		if(!pinging.get()) {
-			pinging.set(true);
-			server.ping().exceptionally((e) -> {
-				logger.warn("Pinging failed for " + server.getServerInfo().getName() + ": " + e.getMessage());
-				return null;
-			}).whenCompleteAsync((result, exception) -> {
-				handlePingResponse(result);
-				pinging.set(false);
-			});
-		}
+	private void onUtilizationPolled(UtilizationState utilizationState) {
+		websocketExecutor.execute(() -> {
+			if(destroyed) {
+				return;
+			}
+
+			if(utilizationState == null) {
+				transition(s -> s.withStatusPolled(0));
+				return;
+			}
+
+			long polledAt = System.currentTimeMillis();
+			transition(s -> s.withStatusPolled(polledAt));
+			handleStatusUpdate(Status.fromUtilizationState(utilizationState));
+		});
 	}
 
-	private void handlePingResponse(ServerPing response) {
-		ServerStatus status;
-		int failed = 0;
+	/**
+	 * @return Milliseconds for which a polled status is trusted over ping results, allowing for one missed sweep
+	 */
+	private long getMaxPollAge() {
+		return pterodactylConnector != null ? TimeUnit.SECONDS.toMillis(pterodactylConnector.getPollInterval()) * 2 : 0;
+	}
 
-		if(!pinging.get()) {
-			return;
+	private void settleConnection() {
+		PterodactylConnector.Connection connection = websocketConnection;
+
+		if(connection != null) {
+			connection.settle();
 		}
+	}
 
-		int queuedPlayers = proxyQueuesHandler != null ? proxyQueuesHandler.getQueuedPlayers(server) : 0;
+	/**
+	 * Pings the server, unless a ping is already in flight
+	 * @param onComplete Called once the ping completes, fails or times out, if it was started
+	 * @return Whether the ping was started
+	 */
+	boolean pingServer(Runnable onComplete) {
+		CheckerState current;
 
-		lock.lock();
-		try {
-			ServerStatus.Builder builder = lastStatus.toBuilder().queued(queuedPlayers).motd(staticMotd);
+		do {
+			current = state.get();
 
-			if (response == null) {
-				failed = failedPings.incrementAndGet();
-				builder.players(0);
+			if(destroyed || current.isPingInFlight()) {
+				return false;
+			}
+		} while (!state.compareAndSet(current, current.withPingInFlight(true)));
 
-				if(!websocketConnected.get()) {
-					builder.status(Status.OFFLINE);
-				}
+		long start = System.nanoTime();
+		long timeout = pingScheduler.getPingTimeout();
+
+		// Velocity closes the status connection at the deadline, so the slot is only freed once the connection is gone.
+		// The extra future timeout is a backstop in case the ping never completes at all.
+		CompletableFuture<ServerPing> ping = server.ping(PingOptions.builder().timeout(Duration.ofMillis(timeout)).build())
+				.orTimeout(timeout + PING_TIMEOUT_GRACE, TimeUnit.MILLISECONDS);
+
+		// Free the scheduler's slot as soon as the ping itself is done, before the result is processed
+		ping.whenComplete((result, exception) -> onComplete.run());
+
+		ping.exceptionally((e) -> {
+			if(e instanceof TimeoutException || e.getCause() instanceof TimeoutException) {
+				logger.warn("Pinging timed out for " + server.getServerInfo().getName());
 			} else {
-				failedPings.set(0);
-				builder.players(response.getPlayers().map(ServerPing.Players::getOnline).orElse(0))
-						.motd(staticMotd != null
-									  ? staticMotd : response.getDescriptionComponent().replaceText(newlineRemoval));
+				logger.warn("Pinging failed for " + server.getServerInfo().getName() + ": " + e.getMessage());
+			}
 
-				if(!websocketConnected.get()) {
-					builder.status(Status.ONLINE);
+			return null;
+		}).whenCompleteAsync((result, exception) -> {
+			try {
+				long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+				// Failed pings are treated as taking the full timeout, so failing servers are pinged after responsive ones
+				lastLatency = result != null ? latency : timeout;
+
+				if(result != null) {
+					serverMetrics.recordPing(latency);
+				} else {
+					serverMetrics.recordPingFailure();
 				}
-			}
 
-			status = builder.build();
+				handlePingResponse(result);
 
-			if (!status.equals(lastStatus)) {
-				fireChangeEvent(status);
+				if(!destroyed) {
+					historyStore.getHistory(server.getServerInfo().getName())
+							.record(System.currentTimeMillis(), getStatus(), result != null ? (int) latency : -1);
+				}
+			} finally {
+				// Normally already cleared by handlePingResponse, but an exception there must not stop future pings
+				transition(s -> s.withPingInFlight(false));
 			}
-		} finally {
-			lock.unlock();
+		}, plugin.getExecutor());
+
+		return true;
+	}
+
+	void handlePingResponse(ServerPing response) {
+		if(destroyed) {
+			return;
 		}
 
-		// Pause a server's queue if it receives 3 failed pings in a row
-		if(proxyQueuesHandler != null && !websocketConnected.get()) {
-			if(!proxyQueuesHandler.hasPause(server) && failed >= 3) {
+		int queuedPlayers = proxyQueuesHandler != null ? proxyQueuesHandler.getQueuedPlayers(server) : 0;
+		int players = response != null ? response.getPlayers().map(ServerPing.Players::getOnline).orElse(0) : 0;
+		InternedMotd motd = response != null && staticMotd == null
+				? internMotd(response.getDescriptionComponent()) : staticMotd != null ? staticMotd : InternedMotd.none;
+
+		StatusDamping damping = plugin.getStatusDamping();
+		long now = System.currentTimeMillis();
+		long maxPollAge = getMaxPollAge();
+
+		CheckerState next = transition(s -> {
+			CheckerState counted = damping.decay(damping.count(s, response != null), now);
+			ServerStatus.Builder builder = s.getStatus().toBuilder().queued(queuedPlayers);
+			boolean offline = response == null;
+
+			// Pterodactyl is authoritative for the status while the websocket is connected or being polled
+			if(!s.isStatusFromPterodactyl(now, maxPollAge)) {
+				Status status = damping.decide(s, counted, now);
+				offline = !status.isOnline();
+
+				if(status != s.getStatus().getStatus()) {
+					counted = damping.penalise(counted, now);
+				}
+
+				builder.status(status);
+			}
+
+			// Keep the last known players and motd while a failure is being held back
+			if(response != null || offline) {
+				builder.players(players).motd(motd.motd(), motd.fingerprint());
+			}
+
+			return counted.withStatus(builder.build()).withPingInFlight(false);
+		});
+
+		// Each ping result moves the interval along, as unchanged results no longer cause a transition
+		updatePingInterval(next);
+
+		// Pause a server's queue while pings consider it offline
+		if(proxyQueuesHandler != null && !next.isStatusFromPterodactyl(now, maxPollAge)) {
+			boolean online = next.getStatus().isOnline();
+
+			if(!proxyQueuesHandler.hasPause(server) && !online) {
 				proxyQueuesHandler.pause(server);
-			} else if(failed == 0) {
+			} else if(online) {
 				proxyQueuesHandler.unpause(server);
 			}
 		}
 	}
 
-	private void fireChangeEvent(ServerStatus newStatus) {
-		proxy.getEventManager().fireAndForget(new ServerStatusChangeEvent(server, newStatus, lastStatus));
-		lastStatus = newStatus;
+	/**
+	 * Returns the processed motd for a ping description, reusing the previous instance if the description is unchanged
+	 * This skips stripping newlines and hashing on every ping, and lets status comparisons match motds by reference.
+	 */
+	private InternedMotd internMotd(Component description) {
+		InternedMotd interned = lastMotd;
+
+		if(interned == null || !description.equals(interned.description())) {
+			interned = InternedMotd.of(description, description.replaceText(newlineRemoval));
+			lastMotd = interned;
+		}
+
+		return interned;
+	}
+
+	/**
+	 * Applies an update to the checker state with compare-and-set, retrying if another thread changed it first
+	 * A change event is fired exactly once for each committed transition that changes the server status.
+	 * @param update Side effect free function producing the next state
+	 * @return The committed state
+	 */
+	private CheckerState transition(UnaryOperator<CheckerState> update) {
+		CheckerState current;
+		CheckerState next;
+
+		do {
+			current = state.get();
+			next = update.apply(current);
+
+			if(next == current) {
+				return current;
+			}
+		} while (!state.compareAndSet(current, next));
+
+		if(next.getStatus() != current.getStatus()) {
+			publishStatus();
+			metrics.recordStatusChange();
+			proxy.getEventManager().fireAndForget(
+					new ServerStatusChangeEvent(server, next.getStatus(), current.getStatus()));
+		}
+
+		// Ping results update the interval themselves, other changes only need to if they affect it
+		if(next.getStatus() != current.getStatus() || next.isWebsocketConnected() != current.isWebsocketConnected()) {
+			updatePingInterval(next);
+		}
+
+		return next;
+	}
+
+	/**
+	 * Publishes the latest status for api readers
+	 * The state is read within the lock, so whichever transition publishes last always publishes the newest status.
+	 */
+	private void publishStatus() {
+		synchronized (publishLock) {
+			if(!destroyed) {
+				statusSnapshots.publish(server.getServerInfo().getName(), state.get().getStatus());
+			}
+		}
+	}
+
+	private void updatePingInterval(CheckerState state) {
+		long current = pingInterval;
+		long interval = pingScheduler.getIntervalPolicy().nextInterval(
+				state.getStatus(), state.getFailedPings(), state.isWebsocketConnected(),
+				System.currentTimeMillis() - state.getLastChange(), current);
+
+		if(interval != current) {
+			pingInterval = interval;
+
+			if(interval < current) {
+				pingScheduler.reschedule(this);
+			}
+		}
+	}
+
+	/**
+	 * @return Duration of the last ping in milliseconds, or the ping timeout if it failed
+	 */
+	long getLastLatency() {
+		return lastLatency;
+	}
+
+	ServerStatus getStatus() {
+		return state.get().getStatus();
+	}
+
+	long getPingInterval() {
+		return pingInterval;
+	}
+
+	/**
+	 * A processed motd, along with the raw ping description it was produced from and its fingerprint
+	 */
+	private record InternedMotd(@Nullable Component description, @Nullable Component motd, int fingerprint) {
+		private static final InternedMotd none = new InternedMotd(null, null, 0);
+
+		private static InternedMotd of(@Nullable Component description, Component motd) {
+			return new InternedMotd(description, motd, ServerStatus.fingerprint(motd));
+		}
 	}
 }
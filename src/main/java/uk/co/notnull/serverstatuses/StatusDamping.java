@@ -0,0 +1,125 @@
+package uk.co.notnull.serverstatuses;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Decides when ping results should change a server's status, to avoid flapping on lossy or overloaded links.
+ * A server must fail or succeed a number of consecutive pings, and have kept its current status for a minimum time,
+ * which can differ for each status, before pings change it. Each change also adds to a flap penalty which decays over time. Once the penalty passes
+ * the suppress limit, further changes are held until it decays below the reuse limit.
+ */
+public final class StatusDamping {
+	private final int failureThreshold;
+	private final int successThreshold;
+	private final long[] minDwell;
+	private final long penaltyHalfLife;
+	private final double suppressLimit;
+	private final double reuseLimit;
+
+	/**
+	 * @param failureThreshold Consecutive failed pings before a server is considered offline
+	 * @param successThreshold Consecutive successful pings before a server is considered online
+	 * @param minDwell Milliseconds a status must be kept before pings can change it
+	 * @param penaltyHalfLife Milliseconds for the flap penalty to halve, 0 to disable the penalty
+	 * @param suppressLimit Penalty at which further changes are suppressed
+	 * @param reuseLimit Penalty below which suppressed servers can change status again
+	 */
+	public StatusDamping(int failureThreshold, int successThreshold, long minDwell, long penaltyHalfLife,
+						 double suppressLimit, double reuseLimit) {
+		this(failureThreshold, successThreshold, minDwell, Collections.emptyMap(), penaltyHalfLife, suppressLimit,
+			 reuseLimit);
+	}
+
+	/**
+	 * @param failureThreshold Consecutive failed pings before a server is considered offline
+	 * @param successThreshold Consecutive successful pings before a server is considered online
+	 * @param minDwell Milliseconds a status must be kept before pings can change it
+	 * @param minDwellOverrides Milliseconds to use instead of minDwell for specific statuses
+	 * @param penaltyHalfLife Milliseconds for the flap penalty to halve, 0 to disable the penalty
+	 * @param suppressLimit Penalty at which further changes are suppressed
+	 * @param reuseLimit Penalty below which suppressed servers can change status again
+	 */
+	public StatusDamping(int failureThreshold, int successThreshold, long minDwell,
+						 Map<Status, Long> minDwellOverrides, long penaltyHalfLife, double suppressLimit,
+						 double reuseLimit) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.successThreshold = Math.max(1, successThreshold);
+		this.minDwell = new long[Status.values().length];
+
+		for (Status status : Status.values()) {
+			this.minDwell[status.ordinal()] = Math.max(0, minDwellOverrides.getOrDefault(status, minDwell));
+		}
+
+		this.penaltyHalfLife = Math.max(0, penaltyHalfLife);
+		this.suppressLimit = suppressLimit;
+		this.reuseLimit = Math.min(reuseLimit, suppressLimit);
+	}
+
+	/**
+	 * Counts a ping result, capping the consecutive counts at their thresholds
+	 * Counts beyond the threshold make no difference to decisions, and capping them means repeated unchanged results
+	 * leave the state as is.
+	 */
+	CheckerState count(CheckerState state, boolean success) {
+		return success
+				? state.withSuccessfulPings(Math.min(state.getSuccessfulPings() + 1, successThreshold)).withFailedPings(0)
+				: state.withFailedPings(Math.min(state.getFailedPings() + 1, failureThreshold)).withSuccessfulPings(0);
+	}
+
+	/**
+	 * Decays the flap penalty of a state to the given time, updating whether it is suppressed
+	 */
+	CheckerState decay(CheckerState state, long now) {
+		// Nothing to decay, and the penalty time only matters once penalised
+		if(penaltyHalfLife == 0 || (state.getFlapPenalty() == 0 && !state.isSuppressed())) {
+			return state;
+		}
+
+		double elapsed = Math.max(0, now - state.getFlapPenaltyTime());
+		double penalty = state.getFlapPenalty() * Math.pow(0.5, elapsed / penaltyHalfLife);
+
+		return state.withFlapPenalty(penalty, now, state.isSuppressed() && penalty > reuseLimit);
+	}
+
+	/**
+	 * Adds a flap to the penalty of a state that has already been decayed to the given time, suppressing it if over
+	 * the limit
+	 */
+	CheckerState penalise(CheckerState state, long now) {
+		if(penaltyHalfLife == 0) {
+			return state;
+		}
+
+		double penalty = state.getFlapPenalty() + 1;
+
+		return state.withFlapPenalty(penalty, now, state.isSuppressed() || penalty >= suppressLimit);
+	}
+
+	/**
+	 * Decides which status a ping result should leave a server in
+	 * The first result after a checker starts is always applied, as the initial status is only a guess.
+	 * @param previous The state before the ping result
+	 * @param counted The state with the ping result counted and penalty decayed
+	 * @param now The current time in milliseconds
+	 * @return The status to use, which is the current status if the change is being held back
+	 */
+	Status decide(CheckerState previous, CheckerState counted, long now) {
+		Status current = previous.getStatus().getStatus();
+		boolean success = counted.getSuccessfulPings() > 0;
+		Status target = success ? Status.ONLINE : Status.OFFLINE;
+
+		if(current == target || (previous.getFailedPings() == 0 && previous.getSuccessfulPings() == 0)) {
+			return target;
+		}
+
+		int consecutive = success ? counted.getSuccessfulPings() : counted.getFailedPings();
+
+		if(consecutive < (success ? successThreshold : failureThreshold)
+				|| now - previous.getLastChange() < minDwell[current.ordinal()] || counted.isSuppressed()) {
+			return current;
+		}
+
+		return target;
+	}
+}
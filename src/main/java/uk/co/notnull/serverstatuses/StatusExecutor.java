@@ -0,0 +1,126 @@
+package uk.co.notnull.serverstatuses;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Plugin owned executor for ping completions, websocket callbacks and informer sends.
+ * Keeps this work off the common ForkJoinPool, which is shared with everything else on the proxy.
+ * When using virtual threads, a semaphore bounds how many tasks run at once.
+ * Tasks submitted after the executor has been replaced on reload are passed on to the plugin's current executor, so
+ * they still run off the threads that submitted them.
+ */
+public final class StatusExecutor implements Executor {
+	private final Logger logger;
+	private final Supplier<? extends Executor> current;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final boolean virtualThreads;
+	private final int maxConcurrency;
+
+	/**
+	 * @param logger Logger for uncaught task exceptions
+	 * @param current Supplier of the plugin's current executor, which tasks are passed to once this one is replaced
+	 * @param virtualThreads Whether to run each task on a new virtual thread, rather than a fixed pool
+	 * @param maxConcurrency Maximum number of tasks to run at once
+	 */
+	public StatusExecutor(Logger logger, Supplier<? extends Executor> current, boolean virtualThreads,
+						  int maxConcurrency) {
+		this.logger = logger;
+		this.current = current;
+		this.virtualThreads = virtualThreads;
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+
+		if(virtualThreads) {
+			executor = Executors.newThreadPerTaskExecutor(
+					Thread.ofVirtual().name("serverstatuses-", 0).factory());
+			permits = new Semaphore(this.maxConcurrency);
+		} else {
+			executor = Executors.newFixedThreadPool(this.maxConcurrency,
+					Thread.ofPlatform().name("serverstatuses-", 0).daemon().factory());
+			permits = null;
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		try {
+			executor.execute(permits != null ? () -> runWithPermit(task) : () -> run(task));
+		} catch (RejectedExecutionException e) {
+			Executor replacement = current.get();
+
+			// Only dropped if the plugin itself is shutting down
+			if(replacement != null && replacement != this) {
+				replacement.execute(task);
+			} else {
+				logger.debug("Dropping status task submitted after shutdown");
+			}
+		}
+	}
+
+	private void runWithPermit(Runnable task) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		try {
+			run(task);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable e) {
+			logger.error("Uncaught exception in status task", e);
+		}
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Stops accepting tasks and waits briefly for running ones to finish
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		awaitTermination();
+	}
+
+	/**
+	 * Stops accepting tasks without waiting, letting running ones finish in the background
+	 * Used when the executor is replaced on reload, so the reloading thread isn't held up.
+	 */
+	public void drain() {
+		executor.shutdown();
+		Thread.ofVirtual().name("serverstatuses-drain").start(this::awaitTermination);
+	}
+
+	private void awaitTermination() {
+		try {
+			if(!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
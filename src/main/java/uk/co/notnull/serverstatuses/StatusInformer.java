@@ -1,35 +1,70 @@
 package uk.co.notnull.serverstatuses;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.player.ServerPostConnectEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ServerConnection;
 import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import org.jetbrains.annotations.Nullable;
+import uk.co.notnull.serverstatuses.PayloadEncoder.Format;
+import uk.co.notnull.serverstatuses.PayloadEncoder.PacketType;
 import uk.co.notnull.serverstatuses.events.ServerStatusChangeEvent;
+import uk.co.notnull.serverstatuses.metrics.Metrics;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+/**
+ * Sends signed status packets to informed servers.
+ * Informed servers with the same set of watched servers share a {@link Subscription}, so each distinct set has its
+ * payloads generated once and is only sent updates when one of its watched servers changes.
+ */
 public final class StatusInformer {
 	private static final MinecraftChannelIdentifier statusChannel = MinecraftChannelIdentifier
 			.create("serverstatus", "status");
+	private static final int MAX_SEND_ATTEMPTS = 3;
 	private final ServerStatuses plugin;
+	private final Metrics metrics;
+	private final SerialExecutor sendExecutor;
+	private PayloadEncoder encoder = null;
 	private byte[] secret = null;
-	private List<RegisteredServer> serversToInform;
+	private int compressionThreshold = -1;
+	private volatile List<Subscription> subscriptions = List.of();
 	private final ConcurrentHashMap<String, ServerStatus> serverStatuses = new ConcurrentHashMap<>();
 
-	public StatusInformer(ServerStatuses plugin, String secret, List<RegisteredServer> servers) {
+	// One connection per informed server to send plugin messages over, kept up to date as players move
+	private volatile Set<RegisteredServer> informedServers = Set.of();
+	private final ConcurrentHashMap<RegisteredServer, ServerConnection> carriers = new ConcurrentHashMap<>();
+
+	private boolean incremental = false;
+	private ScheduledTask snapshotTask = null;
+
+	private long coalesceWindow = 0;
+	private long maxLatency = 0;
+	private final Set<String> pendingChanges = new LinkedHashSet<>();
+	private long firstPendingChange = 0;
+	private ScheduledTask flushTask = null;
+
+	public StatusInformer(ServerStatuses plugin, String secret, List<InformTarget> servers) {
 		this.plugin = plugin;
+		this.metrics = plugin.getMetrics();
+		this.sendExecutor = new SerialExecutor(plugin::getExecutor);
 		setSecret(secret);
 		setServersToInform(servers);
 		plugin.getProxy().getEventManager().register(plugin, this);
@@ -37,91 +72,517 @@ public final class StatusInformer {
 
 	@Subscribe
 	public void onServerStatusChange(ServerStatusChangeEvent event) {
-		serverStatuses.compute(event.getServer().getServerInfo().getName(), (k, v) -> event.getStatus());
-		sendStatusPacket();
+		String name = event.getServer().getServerInfo().getName();
+
+		synchronized (this) {
+			serverStatuses.compute(name, (k, v) -> event.getStatus());
+			pendingChanges.add(name);
+
+			for (Subscription subscription : subscriptions) {
+				if(subscription.includes(name)) {
+					subscription.version++;
+				}
+			}
+
+			if(coalesceWindow <= 0) {
+				flushChanges();
+				return;
+			}
+
+			// Wait for the window to pass without further changes, but never beyond the max latency of the first change
+			long now = System.currentTimeMillis();
+
+			if(flushTask == null) {
+				firstPendingChange = now;
+			} else {
+				flushTask.cancel();
+			}
+
+			long delay = Math.max(0, Math.min(coalesceWindow, firstPendingChange + maxLatency - now));
+
+			flushTask = plugin.getProxy().getScheduler().buildTask(plugin, this::flushChanges)
+					.delay(delay, TimeUnit.MILLISECONDS).schedule();
+		}
+	}
+
+	/**
+	 * Sends a single broadcast covering all changes accumulated since the last one
+	 * Subscriptions that don't watch any of the changed servers are skipped.
+	 */
+	private synchronized void flushChanges() {
+		if(flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+
+		if(pendingChanges.isEmpty()) {
+			return;
+		}
+
+		for (Subscription subscription : subscriptions) {
+			if(incremental) {
+				Map<String, ServerStatus> changed = new LinkedHashMap<>();
+
+				pendingChanges.forEach(name -> {
+					if(subscription.includes(name)) {
+						changed.put(name, serverStatuses.get(name));
+					}
+				});
+
+				if(changed.isEmpty()) {
+					continue;
+				}
+
+				subscription.sequence++;
+				subscription.version++;
+				long seq = subscription.sequence;
+				broadcastPayload(subscription, false,
+								 format -> generatePayload(changed, PacketType.DELTA, seq, format));
+			} else if(pendingChanges.stream().anyMatch(subscription::includes)) {
+				broadcastPayload(subscription, true, format -> generatePayload(subscription, format));
+			}
+		}
+
+		pendingChanges.clear();
 	}
 
 	@Subscribe
 	public void onServerJoined(ServerPostConnectEvent event) {
-		RegisteredServer server = event.getPlayer().getCurrentServer().map(ServerConnection::getServer)
-				.orElse(null);
+		Player player = event.getPlayer();
+
+		if(event.getPreviousServer() != null) {
+			releaseCarrier(event.getPreviousServer(), player);
+		}
+
+		ServerConnection connection = player.getCurrentServer().orElse(null);
+
+		if (connection == null || !informedServers.contains(connection.getServer())) {
+			return;
+		}
 
-		if (server != null && serversToInform.contains(server) && server.getPlayersConnected().size() == 1) {
-			sendStatusPacket(server);
+		RegisteredServer server = connection.getServer();
+
+		// The first player to arrive on an informed server becomes its carrier, and catches the server up if needed
+		if(carriers.compute(server, (key, carrier) -> isCarrying(carrier, key) ? carrier : connection) != connection) {
+			return;
+		}
+
+		for (Subscription subscription : subscriptions) {
+			for (InformTarget target : subscription.targets) {
+				if(target.getServer().equals(server)) {
+					sendExecutor.execute(() -> catchUp(subscription, target));
+				}
+			}
 		}
 	}
 
+	@Subscribe
+	public void onDisconnect(DisconnectEvent event) {
+		Player player = event.getPlayer();
+
+		carriers.forEach((server, carrier) -> {
+			if(carrier.getPlayer().equals(player)) {
+				releaseCarrier(server, player);
+			}
+		});
+	}
+
+	/**
+	 * Replaces the carrier of a server if it is the given player, as they are leaving it
+	 * @param server The server the player is leaving
+	 * @param player The leaving player
+	 */
+	private void releaseCarrier(RegisteredServer server, Player player) {
+		carriers.computeIfPresent(server, (key, carrier) ->
+				carrier.getPlayer().equals(player) ? findCarrier(key, player) : carrier);
+	}
+
+	/**
+	 * @return Whether the payload was sent, which is false if the carrier is no longer connected
+	 */
+	private static boolean send(ServerConnection carrier, byte[] payload) {
+		try {
+			return carrier.sendPluginMessage(statusChannel, payload);
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces a carrier that failed to send, if it is still the server's carrier
+	 * @param server The server
+	 * @param failed The carrier that failed
+	 * @return The server's carrier after replacement, or null if no other players are connected
+	 */
+	private ServerConnection replaceCarrier(RegisteredServer server, ServerConnection failed) {
+		return carriers.computeIfPresent(server, (key, carrier) ->
+				carrier == failed ? findCarrier(key, failed.getPlayer()) : carrier);
+	}
+
+	/**
+	 * Finds a connection to the given server to send its plugin messages over
+	 * This is only needed when a server first becomes informed or its carrier leaves, not for each send.
+	 * @param server The server
+	 * @param excluded A player to skip, such as one currently leaving the server
+	 * @return The connection, or null if no other players are connected
+	 */
+	private ServerConnection findCarrier(RegisteredServer server, @Nullable Player excluded) {
+		for (Player player : server.getPlayersConnected()) {
+			ServerConnection connection = player.getCurrentServer().orElse(null);
+
+			if(!player.equals(excluded) && isCarrying(connection, server)) {
+				return connection;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isCarrying(@Nullable ServerConnection connection, RegisteredServer server) {
+		return connection != null && connection.getServer().equals(server)
+				&& connection.getPlayer().getCurrentServer().orElse(null) == connection;
+	}
+
+	/**
+	 * Regenerates and sends a full payload to every informed server, such as after messages.yml has been reloaded
+	 * and previously sent lines are out of date
+	 */
+	public synchronized void resendStatuses() {
+		invalidatePayloads();
+		sendStatusPacket();
+	}
+
+	/**
+	 * Sends a full payload to every informed server
+	 */
 	private void sendStatusPacket() {
-		byte[] payload = generatePayload();
+		for (Subscription subscription : subscriptions) {
+			broadcastPayload(subscription, true, format -> generatePayload(subscription, format));
+		}
+	}
+
+	/**
+	 * Sends a payload to every informed server in a subscription, generating it at most once for each format in use
+	 * @param subscription The subscription to send to
+	 * @param full Whether the payload is a full payload, which can be held for servers without players
+	 * @param generator Function generating the payload for a given format
+	 */
+	private synchronized void broadcastPayload(Subscription subscription, boolean full,
+											   Function<Format, byte[]> generator) {
+		Map<Format, byte[]> payloads = new EnumMap<>(Format.class);
+		List<InformTarget> targets = subscription.targets;
+		long version = subscription.version;
 
-		for (RegisteredServer server : serversToInform) {
-			sendStatusPacketToServer(server, payload);
+		for (InformTarget target : targets) {
+			payloads.computeIfAbsent(target.getFormat(), generator);
 		}
+
+		// Sends are made in order on the plugin executor, so packets arrive in sequence without holding up the caller
+		sendExecutor.execute(() -> {
+			for (InformTarget target : targets) {
+				byte[] payload = payloads.get(target.getFormat());
+
+				if(payload != null) {
+					deliver(subscription, target, payload, version, full);
+				}
+			}
+		});
 	}
 
-	private void sendStatusPacket(RegisteredServer server) {
-		byte[] payload = generatePayload();
+	/**
+	 * Sends the current statuses to an informed server that has just gained a carrier, if it is behind
+	 * The held payload is used if it is still current, otherwise the cached full payload is used.
+	 * Must be called on the send executor.
+	 */
+	private void catchUp(Subscription subscription, InformTarget target) {
+		Mailbox mailbox = subscription.mailboxes.get(target);
+		long version;
+		byte[] payload;
+
+		synchronized (this) {
+			version = subscription.version;
+
+			if(mailbox.delivered == version) {
+				return;
+			}
+
+			payload = mailbox.heldVersion == version ? mailbox.held : generatePayload(subscription, target.getFormat());
+		}
 
 		if(payload != null) {
-			sendStatusPacketToServer(server, payload);
+			deliver(subscription, target, payload, version, true);
 		}
 	}
 
-	private void sendStatusPacketToServer(RegisteredServer server, byte[] payload) {
-		Optional<Player> player = server.getPlayersConnected().stream().findFirst();
+	/**
+	 * Sends a payload to an informed server, or holds it in the server's mailbox if it has no players
+	 * Only the newest held payload is kept. Must be called on the send executor.
+	 * @param version The subscription version the payload brings the server up to
+	 * @param full Whether the payload is a full payload. Deltas are not held, as they can't be applied later.
+	 */
+	private void deliver(Subscription subscription, InformTarget target, byte[] payload, long version, boolean full) {
+		Mailbox mailbox = subscription.mailboxes.get(target);
+		RegisteredServer server = target.getServer();
+		ServerConnection carrier = carriers.get(server);
 
-		if (player.isPresent() && player.get().getCurrentServer().isPresent()) {
-			ServerConnection connection = player.get().getCurrentServer().get();
+		// A carrier may be leaving the server before its connect or disconnect event releases it, so replace it
+		for (int attempt = 0; carrier != null && !send(carrier, payload); attempt++) {
+			ServerConnection replacement = replaceCarrier(server, carrier);
+			carrier = attempt + 1 < MAX_SEND_ATTEMPTS ? replacement : null;
+		}
 
-			connection.sendPluginMessage(statusChannel, payload);
+		if (carrier == null) {
+			// A missed delta means the server needs a full payload before any further deltas are of use
+			if(!full) {
+				mailbox.delivered = -1;
+			}
+
+			mailbox.held = full ? payload : null;
+			mailbox.heldVersion = full ? version : -1;
+			return;
 		}
-	}
 
-	private byte[] generatePayload() {
-		byte[] payloadBytes;
+		metrics.recordPacketSent(payload.length);
 
-		if(secret == null) {
-			return null;
+		if(full || mailbox.delivered >= 0) {
+			mailbox.delivered = version;
 		}
 
-		try {
-			Gson gson = new GsonBuilder().create();
-			Mac hmac = Mac.getInstance("HmacSHA512");
+		mailbox.held = null;
+		mailbox.heldVersion = -1;
+	}
+
+	/**
+	 * Returns a full payload for the current statuses of a subscription's watched servers
+	 * The payload is cached against the subscription's version, so repeated calls without any changes to its servers
+	 * in between return the same bytes without serialising or signing again.
+	 * @param subscription The subscription
+	 * @param format The payload format
+	 * @return The payload, or null if no secret is configured or signing failed
+	 */
+	private synchronized byte[] generatePayload(Subscription subscription, Format format) {
+		if(subscription.cachedVersion != subscription.version) {
+			subscription.cachedPayloads.clear();
+			subscription.cachedVersion = subscription.version;
+		}
+
+		byte[] payload = subscription.cachedPayloads.get(format);
 
-			SecretKeySpec keySpec = new SecretKeySpec(secret, "HmacSHA512");
-			hmac.init(keySpec);
+		if(payload == null) {
+			Map<String, ServerStatus> statuses = subscription.filter(serverStatuses);
 
-			String statusJson = gson.toJson(serverStatuses);
+			payload = incremental
+					? generatePayload(statuses, PacketType.FULL, subscription.sequence, format)
+					: generatePayload(statuses, null, 0, format);
 
-			byte[] macData = hmac.doFinal(statusJson.getBytes(StandardCharsets.UTF_8));
+			if(payload != null) {
+				subscription.cachedPayloads.put(format, payload);
+			}
+		}
+
+		return payload;
+	}
+
+	/**
+	 * Generates a payload with the current encoder. Must be called while holding the informer's lock, as encoders
+	 * are not thread safe.
+	 */
+	private byte[] generatePayload(Map<String, ServerStatus> statuses, PacketType type, long seq, Format format) {
+		if(encoder == null) {
+			return null;
+		}
 
-			Map<String, Object> payload = Map.of(
-					"hmac", byteArrayToHex(macData),
-					"servers", statusJson
-			);
+		try {
+			byte[] payload = encoder.encode(statuses, type, seq, format);
+			metrics.recordPayloadGenerated(payload.length);
 
-			payloadBytes = gson.toJson(payload).getBytes();
+			return payload;
 		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
 			plugin.getLogger().error("Failed to generate status packet payload");
 			e.printStackTrace();
 			return null;
 		}
+	}
+
+	/**
+	 * @param secret The secret to sign payloads with. Payloads are not sent if null or empty.
+	 */
+	public synchronized void setSecret(String secret) {
+		this.secret = secret != null && !secret.isEmpty() ? secret.getBytes(StandardCharsets.UTF_8) : null;
+		updateEncoder();
+	}
+
+	/**
+	 * Sets the size above which binary payload bodies are deflated
+	 * @param compressionThreshold Body size in bytes, or -1 to never deflate
+	 */
+	public synchronized void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		updateEncoder();
+	}
+
+	private void updateEncoder() {
+		if(encoder != null) {
+			encoder.close();
+		}
+
+		this.encoder = secret != null ? new PayloadEncoder(secret, compressionThreshold) : null;
+		invalidatePayloads();
+	}
+
+	private void invalidatePayloads() {
+		for (Subscription subscription : subscriptions) {
+			subscription.version++;
+		}
+	}
+
+	/**
+	 * Adds statuses to use for servers that have not reported one yet, such as those restored from a snapshot
+	 * Servers which already have a status are left unchanged.
+	 * @param statuses Map of server names to statuses
+	 */
+	public synchronized void addProvisionalStatuses(Map<String, ServerStatus> statuses) {
+		statuses.forEach((name, status) -> {
+			if(serverStatuses.putIfAbsent(name, status) == null) {
+				for (Subscription subscription : subscriptions) {
+					if(subscription.includes(name)) {
+						subscription.version++;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the servers to send status packets to, grouping them into subscriptions by their watched servers
+	 * Sequence numbers are kept for subscriptions that still exist, so clients don't see them go backwards.
+	 */
+	public synchronized void setServersToInform(List<InformTarget> serversToInform) {
+		Map<Set<String>, Subscription> existing = new HashMap<>();
+		Map<Set<String>, Subscription> grouped = new LinkedHashMap<>();
+
+		for (Subscription subscription : subscriptions) {
+			existing.put(subscription.servers, subscription);
+		}
+
+		for (InformTarget target : serversToInform) {
+			grouped.computeIfAbsent(target.getWatchedServers(), (servers) -> {
+				Subscription subscription = new Subscription(servers);
+				Subscription previous = existing.get(servers);
+
+				if(previous != null) {
+					subscription.sequence = previous.sequence;
+				}
+
+				return subscription;
+			}).add(target);
+		}
+
+		this.subscriptions = List.copyOf(grouped.values());
+
+		Set<RegisteredServer> informed = new HashSet<>();
+		serversToInform.forEach(target -> informed.add(target.getServer()));
+
+		this.informedServers = Set.copyOf(informed);
+		carriers.keySet().retainAll(informed);
 
-		return payloadBytes;
+		for (RegisteredServer server : informed) {
+			carriers.computeIfAbsent(server, (key) -> findCarrier(key, null));
+		}
 	}
 
-	private static String byteArrayToHex(byte[] a) {
-		StringBuilder sb = new StringBuilder(a.length * 2);
-		for (byte b : a)
-			sb.append(String.format("%02x", b));
-		return sb.toString();
+	/**
+	 * Sets how long status changes are accumulated for before being broadcast together
+	 * @param coalesceWindow Milliseconds to wait for further changes after each change, 0 to send every change immediately
+	 * @param maxLatency Maximum milliseconds a change can be held for while further changes keep arriving
+	 */
+	public synchronized void setCoalescing(long coalesceWindow, long maxLatency) {
+		this.coalesceWindow = coalesceWindow;
+		this.maxLatency = Math.max(maxLatency, coalesceWindow);
+
+		if(coalesceWindow <= 0) {
+			flushChanges();
+		}
 	}
 
-	public void setSecret(String secret) {
-		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+	/**
+	 * Switches between the full and incremental protocols
+	 * @param incremental Whether to send delta packets with sequence numbers
+	 * @param snapshotInterval Seconds between full snapshots in the incremental protocol, 0 to only send on join
+	 */
+	public void setIncremental(boolean incremental, long snapshotInterval) {
+		synchronized (this) {
+			this.incremental = incremental;
+			invalidatePayloads();
+		}
+
+		if(snapshotTask != null) {
+			snapshotTask.cancel();
+			snapshotTask = null;
+		}
+
+		if(incremental && snapshotInterval > 0) {
+			snapshotTask = plugin.getProxy().getScheduler()
+					.buildTask(plugin, this::sendStatusPacket)
+					.delay(snapshotInterval, TimeUnit.SECONDS)
+					.repeat(snapshotInterval, TimeUnit.SECONDS).schedule();
+		}
+	}
+
+	/**
+	 * Informed servers watching the same set of servers, which are sent the same payloads
+	 * Payload caching and sequence numbers are tracked per subscription, as each sees a different set of changes.
+	 */
+	private static final class Subscription {
+		private final @Nullable Set<String> servers;
+		private final List<InformTarget> targets = new ArrayList<>();
+		private final Map<InformTarget, Mailbox> mailboxes = new HashMap<>();
+		private long sequence = 0;
+
+		// Incremented whenever the contents of a full payload would change
+		private long version = 0;
+		private long cachedVersion = -1;
+		private final EnumMap<Format, byte[]> cachedPayloads = new EnumMap<>(Format.class);
+
+		private Subscription(@Nullable Set<String> servers) {
+			this.servers = servers;
+		}
+
+		private void add(InformTarget target) {
+			targets.add(target);
+			mailboxes.put(target, new Mailbox());
+		}
+
+		private boolean includes(String server) {
+			return servers == null || servers.contains(server);
+		}
+
+		private Map<String, ServerStatus> filter(Map<String, ServerStatus> statuses) {
+			if(servers == null) {
+				return statuses;
+			}
+
+			Map<String, ServerStatus> filtered = new LinkedHashMap<>();
+
+			for (String server : servers) {
+				ServerStatus status = statuses.get(server);
+
+				if(status != null) {
+					filtered.put(server, status);
+				}
+			}
+
+			return filtered;
+		}
 	}
 
-	public void setServersToInform(List<RegisteredServer> serversToInform) {
-		this.serversToInform = serversToInform;
+	/**
+	 * Tracks what an informed server has been sent, so it is only sent payloads it is behind on
+	 * Only accessed on the send executor.
+	 */
+	private static final class Mailbox {
+		private long delivered = -1;
+		private byte[] held = null;
+		private long heldVersion = -1;
 	}
 }
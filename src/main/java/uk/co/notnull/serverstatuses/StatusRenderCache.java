@@ -0,0 +1,206 @@
+package uk.co.notnull.serverstatuses;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.ComponentLike;
+import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
+import uk.co.notnull.messageshelper.Message;
+import uk.co.notnull.messageshelper.MessagesHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of the rendered status lines sent to informed servers.
+ * Lines only depend on the fields in {@link Key}, so statuses that render identically share the same output,
+ * and rendering is skipped entirely for statuses that match a recently rendered one.
+ * The cache is invalidated whenever messages.yml is reloaded.
+ */
+final class StatusRenderCache {
+	private static final int MAX_SIZE = 4096;
+	private static final GsonComponentSerializer gsonComponentSerializer = GsonComponentSerializer.builder().build();
+
+	private static final Map<Key, Lines> cache = new LinkedHashMap<>(256, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Lines> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private static volatile int generation = 0;
+
+	private StatusRenderCache() {
+	}
+
+	static Lines get(Key key) {
+		int generation = StatusRenderCache.generation;
+
+		synchronized (cache) {
+			Lines lines = cache.get(key);
+
+			if(lines != null && lines.generation == generation) {
+				return lines;
+			}
+		}
+
+		Lines lines = render(key, generation);
+
+		synchronized (cache) {
+			cache.put(key, lines);
+		}
+
+		return lines;
+	}
+
+	static int getGeneration() {
+		return generation;
+	}
+
+	static void invalidate() {
+		synchronized (cache) {
+			generation++;
+			cache.clear();
+		}
+	}
+
+	private static Lines render(Key key, int generation) {
+		Map<String, String> placeholders = new HashMap<>();
+		List<String> playerStatus = new ArrayList<>();
+		Map<String, ComponentLike> componentPlaceholders = Collections.singletonMap(
+				"motd", key.motd() != null ? key.motd() : Component.empty());
+
+		MessagesHelper helper = ServerStatuses.getMessagesHelper();
+
+		if (key.status().isOnline()) {
+			playerStatus.add(helper.getString("players.online"));
+		}
+
+		if (key.playersQueued() > 0 || !key.status().isOnline()) {
+			playerStatus.add(helper.getString("players.queued"));
+		}
+
+		placeholders.put("players", String.join(", ", playerStatus));
+		placeholders.put("queued", String.valueOf(key.playersQueued()));
+		placeholders.put("online", String.valueOf(key.playersOnline()));
+
+		if(key.lockdownReason() != null) {
+			placeholders.put("lockdownreason", key.lockdownReason());
+		}
+
+		String messageKey = key.status().getMessageKey();
+		Component line1 = helper.getComponent(Message.builder(messageKey + ".line-1")
+													  .stringReplacements(placeholders)
+													  .componentReplacements(componentPlaceholders)
+													  .build());
+		Component line2 = helper.getComponent(Message.builder(messageKey + ".line-2")
+													  .stringReplacements(placeholders)
+													  .componentReplacements(componentPlaceholders).build());
+
+		String[] separateLines = {
+				gsonComponentSerializer.serialize(line1),
+				gsonComponentSerializer.serialize(line2)
+		};
+
+		String combinedLines = gsonComponentSerializer.serialize(
+				Component.empty().append(line1).append(Component.newline()).append(line2));
+
+		return new Lines(separateLines, combinedLines, generation);
+	}
+
+	/**
+	 * Identifies a rendering of status lines
+	 * The motd is hashed by its precomputed fingerprint and compared by reference, as checkers reuse the same
+	 * component while a server's motd is unchanged. This avoids walking the component tree on every lookup.
+	 */
+	static final class Key {
+		private final Status status;
+		private final int playersOnline;
+		private final int playersQueued;
+		private final Component motd;
+		private final int motdFingerprint;
+		private final String lockdownReason;
+
+		Key(Status status, int playersOnline, int playersQueued, Component motd, int motdFingerprint,
+			String lockdownReason) {
+			this.status = status;
+			this.playersOnline = playersOnline;
+			this.playersQueued = playersQueued;
+			this.motd = motd;
+			this.motdFingerprint = motdFingerprint;
+			this.lockdownReason = lockdownReason;
+		}
+
+		Status status() {
+			return status;
+		}
+
+		int playersOnline() {
+			return playersOnline;
+		}
+
+		int playersQueued() {
+			return playersQueued;
+		}
+
+		Component motd() {
+			return motd;
+		}
+
+		String lockdownReason() {
+			return lockdownReason;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+
+			if(!(o instanceof Key key)) {
+				return false;
+			}
+
+			return status == key.status && playersOnline == key.playersOnline && playersQueued == key.playersQueued
+					&& motdFingerprint == key.motdFingerprint && motd == key.motd
+					&& Objects.equals(lockdownReason, key.lockdownReason);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = status.hashCode();
+			result = 31 * result + playersOnline;
+			result = 31 * result + playersQueued;
+			result = 31 * result + motdFingerprint;
+			result = 31 * result + Objects.hashCode(lockdownReason);
+			return result;
+		}
+	}
+
+	static final class Lines {
+		private final String[] separateLines;
+		private final String combinedLines;
+		private final int generation;
+
+		private Lines(String[] separateLines, String combinedLines, int generation) {
+			this.separateLines = separateLines;
+			this.combinedLines = combinedLines;
+			this.generation = generation;
+		}
+
+		String[] getSeparateLines() {
+			return separateLines;
+		}
+
+		String getCombinedLines() {
+			return combinedLines;
+		}
+
+		int getGeneration() {
+			return generation;
+		}
+	}
+}
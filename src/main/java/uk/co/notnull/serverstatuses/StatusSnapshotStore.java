@@ -0,0 +1,200 @@
+package uk.co.notnull.serverstatuses;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
+import org.slf4j.Logger;
+import uk.co.notnull.serverstatuses.events.ServerStatusChangeEvent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the last known status of each checked server, so that a restarted proxy can start from them.
+ * Statuses are saved shortly after they change, with further changes in the meantime batched into the same save,
+ * and again on shutdown. On startup, statuses from a snapshot saved within the staleness limit are used as provisional
+ * statuses until each server has been checked.
+ */
+public final class StatusSnapshotStore {
+	private static final Gson gson = new GsonBuilder().create();
+	private static final GsonComponentSerializer gsonComponentSerializer = GsonComponentSerializer.gson();
+
+	private final ServerStatuses plugin;
+	private final Logger logger;
+	private final Path file;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Map<String, ServerStatus> provisionalStatuses;
+	private long provisionalExpiry = 0;
+
+	private long saveDelay = 5;
+	private ScheduledTask saveTask = null;
+
+	public StatusSnapshotStore(ServerStatuses plugin, Path file, long maxAge) {
+		this.plugin = plugin;
+		this.logger = plugin.getLogger();
+		this.file = file;
+		this.provisionalStatuses = Collections.unmodifiableMap(load(maxAge));
+
+		plugin.getProxy().getEventManager().register(plugin, this);
+	}
+
+	/**
+	 * Stops listening for status changes, without saving
+	 */
+	public synchronized void destroy() {
+		plugin.getProxy().getEventManager().unregisterListener(plugin, this);
+
+		if(saveTask != null) {
+			saveTask.cancel();
+			saveTask = null;
+		}
+	}
+
+	/**
+	 * @return Statuses loaded from the snapshot on startup, or an empty map once the snapshot is older than the
+	 * staleness limit, so servers added by later reloads don't start from outdated statuses
+	 */
+	public Map<String, ServerStatus> getProvisionalStatuses() {
+		return System.currentTimeMillis() < provisionalExpiry ? provisionalStatuses : Collections.emptyMap();
+	}
+
+	/**
+	 * @param saveDelay Seconds to wait after a status change before saving
+	 */
+	public synchronized void setSaveDelay(long saveDelay) {
+		this.saveDelay = Math.max(0, saveDelay);
+	}
+
+	@Subscribe
+	public void onServerStatusChange(ServerStatusChangeEvent event) {
+		entries.put(event.getServer().getServerInfo().getName(),
+					new Entry(event.getStatus(), System.currentTimeMillis()));
+		scheduleSave();
+	}
+
+	private synchronized void scheduleSave() {
+		if(saveTask != null) {
+			return;
+		}
+
+		saveTask = plugin.getProxy().getScheduler().buildTask(plugin, () -> {
+			synchronized (this) {
+				saveTask = null;
+			}
+
+			save();
+		}).delay(saveDelay, TimeUnit.SECONDS).schedule();
+	}
+
+	/**
+	 * Writes the snapshot immediately, such as on shutdown
+	 */
+	public synchronized void save() {
+		if(saveTask != null) {
+			saveTask.cancel();
+			saveTask = null;
+		}
+
+		JsonObject servers = new JsonObject();
+
+		entries.forEach((name, entry) -> {
+			ServerStatus status = entry.status();
+			JsonObject server = new JsonObject();
+
+			server.addProperty("status", status.getStatus().name());
+			server.addProperty("online", status.getPlayersOnline());
+			server.addProperty("queued", status.getPlayersQueued());
+			server.addProperty("updated", entry.updated());
+
+			if(status.getMotd() != null) {
+				server.add("motd", gsonComponentSerializer.serializeToTree(status.getMotd()));
+			}
+
+			if(status.getLockdownReason() != null) {
+				server.addProperty("lockdownReason", status.getLockdownReason());
+			}
+
+			servers.add(name, server);
+		});
+
+		JsonObject snapshot = new JsonObject();
+		snapshot.addProperty("saved", System.currentTimeMillis());
+		snapshot.add("servers", servers);
+
+		try {
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				gson.toJson(snapshot, writer);
+			}
+
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Failed to save status snapshot: " + e.getMessage());
+		}
+	}
+
+	private Map<String, ServerStatus> load(long maxAge) {
+		Map<String, ServerStatus> statuses = new HashMap<>();
+
+		if(!Files.exists(file)) {
+			return statuses;
+		}
+
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			JsonObject snapshot = gson.fromJson(reader, JsonObject.class);
+			long saved = snapshot.get("saved").getAsLong();
+
+			// Statuses were current when saved, however long ago they last changed, so staleness is from the save
+			provisionalExpiry = saved + TimeUnit.SECONDS.toMillis(maxAge);
+
+			if(System.currentTimeMillis() >= provisionalExpiry) {
+				logger.info("Ignoring status snapshot saved more than {} seconds ago", maxAge);
+				return statuses;
+			}
+
+			JsonObject servers = snapshot.getAsJsonObject("servers");
+
+			servers.entrySet().forEach((server) -> {
+				JsonObject entry = server.getValue().getAsJsonObject();
+				long updated = entry.get("updated").getAsLong();
+				Component motd = entry.has("motd") ? gsonComponentSerializer.deserializeFromTree(entry.get("motd")) : null;
+				ServerStatus status = ServerStatus.builder()
+						.status(Status.valueOf(entry.get("status").getAsString()))
+						.players(entry.get("online").getAsInt())
+						.queued(entry.get("queued").getAsInt())
+						.motd(motd)
+						.lockdown(entry.has("lockdownReason") ? entry.get("lockdownReason").getAsString() : null)
+						.build();
+
+				statuses.put(server.getKey(), status);
+				entries.put(server.getKey(), new Entry(status, updated));
+			});
+
+			logger.info("Loaded {} provisional statuses from snapshot", statuses.size());
+		} catch (IOException | JsonParseException | IllegalArgumentException | IllegalStateException |
+				 NullPointerException e) {
+			logger.warn("Failed to load status snapshot: " + e.getMessage());
+		}
+
+		return statuses;
+	}
+
+	private record Entry(ServerStatus status, long updated) {
+	}
+}
@@ -0,0 +1,47 @@
+package uk.co.notnull.serverstatuses;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copy-on-write map of the current status of each checked server, for {@link uk.co.notnull.serverstatuses.api.ServerStatusesAPI}.
+ * Each change replaces the whole immutable map, so readers only ever need a single volatile read.
+ */
+final class StatusSnapshots {
+	private final AtomicReference<Map<String, ServerStatus>> snapshot = new AtomicReference<>(Map.of());
+
+	Map<String, ServerStatus> get() {
+		return snapshot.get();
+	}
+
+	void publish(String server, ServerStatus status) {
+		snapshot.updateAndGet(current -> {
+			if(current.get(server) == status) {
+				return current;
+			}
+
+			Map<String, ServerStatus> next = new HashMap<>(current);
+			next.put(server, status);
+
+			return Map.copyOf(next);
+		});
+	}
+
+	/**
+	 * Removes the statuses of servers that are no longer checked
+	 */
+	void retain(Set<String> servers) {
+		snapshot.updateAndGet(current -> {
+			if(servers.containsAll(current.keySet())) {
+				return current;
+			}
+
+			Map<String, ServerStatus> next = new HashMap<>(current);
+			next.keySet().retainAll(servers);
+
+			return Map.copyOf(next);
+		});
+	}
+}
@@ -0,0 +1,47 @@
+package uk.co.notnull.serverstatuses.api;
+
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import uk.co.notnull.serverstatuses.ServerStatus;
+import uk.co.notnull.serverstatuses.history.StatusHistory;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Read access to the statuses of checked servers, for use by other plugins.
+ * Obtain an instance by casting the ServerStatuses plugin instance from its PluginContainer.
+ *
+ * <p>Statuses are published as immutable snapshots whenever they change, so reads never block and are cheap enough
+ * to make every tick. Listen for {@link uk.co.notnull.serverstatuses.events.ServerStatusChangeEvent} to be notified
+ * of changes instead of polling.</p>
+ */
+public interface ServerStatusesAPI {
+	/**
+	 * Gets the current status of a checked server
+	 * @param server The server
+	 * @return The status, or null if the server isn't checked
+	 */
+	@Nullable ServerStatus getStatus(@NotNull RegisteredServer server);
+
+	/**
+	 * Gets the current status of a checked server
+	 * @param server The server name
+	 * @return The status, or null if the server isn't checked
+	 */
+	@Nullable ServerStatus getStatus(@NotNull String server);
+
+	/**
+	 * Gets the statuses of all checked servers
+	 * @return Immutable map of server names to statuses, which will not change after being returned
+	 */
+	@NotNull Map<String, ServerStatus> getStatuses();
+
+	/**
+	 * Gets the recent status history of a checked server
+	 * @param server The server name
+	 * @return The history, if the server has been checked since it was last enabled
+	 */
+	@NotNull Optional<StatusHistory> getStatusHistory(@NotNull String server);
+}
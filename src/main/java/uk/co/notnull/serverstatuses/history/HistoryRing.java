@@ -0,0 +1,68 @@
+package uk.co.notnull.serverstatuses.history;
+
+import uk.co.notnull.serverstatuses.Status;
+
+import java.util.List;
+
+/**
+ * Fixed size ring buffer of history samples, stored as parallel primitive arrays to avoid an object per sample
+ * Each sample takes 12 bytes. Times are stored as seconds relative to the buffer's creation, and counts are capped to
+ * fit their array types.
+ */
+final class HistoryRing {
+	private static final Status[] statuses = Status.values();
+
+	private final long base;
+	private final int[] times;
+	private final short[] players;
+	private final short[] queued;
+	private final short[] latencies;
+	private final byte[] status;
+	private final byte[] failures;
+
+	private int next = 0;
+	private int size = 0;
+
+	HistoryRing(int capacity, long base) {
+		this.base = base;
+		this.times = new int[capacity];
+		this.players = new short[capacity];
+		this.queued = new short[capacity];
+		this.latencies = new short[capacity];
+		this.status = new byte[capacity];
+		this.failures = new byte[capacity];
+	}
+
+	void add(long time, Status status, int players, int queued, int latency, int failures) {
+		if(times.length == 0) {
+			return;
+		}
+
+		this.times[next] = (int) ((time - base) / 1000);
+		this.players[next] = (short) Math.min(players, Short.MAX_VALUE);
+		this.queued[next] = (short) Math.min(queued, Short.MAX_VALUE);
+		this.latencies[next] = (short) Math.min(latency, Short.MAX_VALUE);
+		this.status[next] = (byte) status.ordinal();
+		this.failures[next] = (byte) Math.min(failures, Byte.MAX_VALUE);
+
+		next = (next + 1) % times.length;
+		size = Math.min(size + 1, times.length);
+	}
+
+	/**
+	 * Adds all samples recorded at or after the given time to a list, oldest first
+	 */
+	void collect(long since, List<HistorySample> samples) {
+		int start = (next - size + times.length) % Math.max(1, times.length);
+
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % times.length;
+			long time = base + times[index] * 1000L;
+
+			if(time >= since) {
+				samples.add(new HistorySample(time, statuses[status[index]], players[index], queued[index],
+											  latencies[index], failures[index]));
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package uk.co.notnull.serverstatuses.history;
+
+import uk.co.notnull.serverstatuses.Status;
+
+/**
+ * A point in a server's status history
+ * Downsampled samples cover several pings, and hold the last status, the highest player and queue counts,
+ * the mean latency of successful pings and the number of failed pings.
+ * @param time Time in milliseconds the sample was recorded, or its period started for downsampled samples
+ * @param status The server's status
+ * @param players Players online
+ * @param queued Players queued
+ * @param latency Ping latency in milliseconds, or -1 if the ping failed
+ * @param failures Number of failed pings
+ */
+public record HistorySample(long time, Status status, int players, int queued, int latency, int failures) {
+}
@@ -0,0 +1,53 @@
+package uk.co.notnull.serverstatuses.history;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the status history of each checked server
+ */
+public final class HistoryStore {
+	private final ConcurrentHashMap<String, StatusHistory> histories = new ConcurrentHashMap<>();
+	private volatile int rawSamples = 600;
+	private volatile int downsampledSamples = 1440;
+	private volatile long period = 60000;
+
+	/**
+	 * Sets the size of each history, clearing existing histories if it has changed
+	 * @param rawSamples Number of pings to keep for each server
+	 * @param downsampledSamples Number of downsampled periods to keep for each server
+	 * @param period Length of each downsampled period in milliseconds
+	 */
+	public synchronized void configure(int rawSamples, int downsampledSamples, long period) {
+		if(rawSamples == this.rawSamples && downsampledSamples == this.downsampledSamples && period == this.period) {
+			return;
+		}
+
+		this.rawSamples = rawSamples;
+		this.downsampledSamples = downsampledSamples;
+		this.period = period;
+		histories.clear();
+	}
+
+	public StatusHistory getHistory(String server) {
+		return histories.computeIfAbsent(server, (k) -> new StatusHistory(rawSamples, downsampledSamples, period));
+	}
+
+	public Optional<StatusHistory> findHistory(String server) {
+		return Optional.ofNullable(histories.get(server));
+	}
+
+	/**
+	 * Removes the histories of servers that are no longer checked
+	 */
+	public void retain(Set<String> servers) {
+		histories.keySet().retainAll(servers);
+	}
+
+	public Map<String, StatusHistory> getHistories() {
+		return Collections.unmodifiableMap(histories);
+	}
+}
@@ -0,0 +1,111 @@
+package uk.co.notnull.serverstatuses.history;
+
+import uk.co.notnull.serverstatuses.ServerStatus;
+import uk.co.notnull.serverstatuses.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Short term history of a single checked server
+ * Every ping is recorded in a raw tier, and also merged into fixed length periods in a downsampled tier,
+ * so a long period can be kept at lower resolution without holding every ping.
+ */
+public final class StatusHistory {
+	private final HistoryRing raw;
+	private final HistoryRing downsampled;
+	private final long period;
+
+	// Period currently being merged into the downsampled tier
+	private long periodStart = -1;
+	private Status periodStatus = Status.OFFLINE;
+	private int periodMaxPlayers = 0;
+	private int periodMaxQueued = 0;
+	private long periodLatencySum = 0;
+	private int periodLatencyCount = 0;
+	private int periodFailures = 0;
+
+	/**
+	 * @param rawSamples Number of pings to keep in the raw tier
+	 * @param downsampledSamples Number of periods to keep in the downsampled tier
+	 * @param period Length of each downsampled period in milliseconds
+	 */
+	StatusHistory(int rawSamples, int downsampledSamples, long period) {
+		long now = System.currentTimeMillis();
+
+		this.raw = new HistoryRing(Math.max(0, rawSamples), now);
+		this.downsampled = new HistoryRing(Math.max(0, downsampledSamples), now);
+		this.period = Math.max(1000, period);
+	}
+
+	/**
+	 * Records the result of a ping
+	 * @param time Time of the ping in milliseconds
+	 * @param status The server's status after the ping
+	 * @param latency Ping latency in milliseconds, or -1 if the ping failed
+	 */
+	public synchronized void record(long time, ServerStatus status, int latency) {
+		int failed = latency < 0 ? 1 : 0;
+
+		raw.add(time, status.getStatus(), status.getPlayersOnline(), status.getPlayersQueued(), latency, failed);
+
+		if(periodStart >= 0 && time >= periodStart + period) {
+			flushPeriod();
+		}
+
+		if(periodStart < 0) {
+			periodStart = time - (time % period);
+		}
+
+		periodStatus = status.getStatus();
+		periodMaxPlayers = Math.max(periodMaxPlayers, status.getPlayersOnline());
+		periodMaxQueued = Math.max(periodMaxQueued, status.getPlayersQueued());
+		periodFailures += failed;
+
+		if(latency >= 0) {
+			periodLatencySum += latency;
+			periodLatencyCount++;
+		}
+	}
+
+	private void flushPeriod() {
+		downsampled.add(periodStart, periodStatus, periodMaxPlayers, periodMaxQueued,
+						periodLatencyCount > 0 ? (int) (periodLatencySum / periodLatencyCount) : -1, periodFailures);
+
+		periodStart = -1;
+		periodMaxPlayers = 0;
+		periodMaxQueued = 0;
+		periodLatencySum = 0;
+		periodLatencyCount = 0;
+		periodFailures = 0;
+	}
+
+	/**
+	 * @param since Time in milliseconds to return samples from
+	 * @return Every recorded ping still held in the raw tier since the given time, oldest first
+	 */
+	public synchronized List<HistorySample> getSamples(long since) {
+		List<HistorySample> samples = new ArrayList<>();
+		raw.collect(since, samples);
+
+		return samples;
+	}
+
+	/**
+	 * @param since Time in milliseconds to return samples from
+	 * @return Downsampled periods since the given time, oldest first, excluding the period still in progress
+	 */
+	public synchronized List<HistorySample> getDownsampledSamples(long since) {
+		List<HistorySample> samples = new ArrayList<>();
+		downsampled.collect(since, samples);
+
+		return samples;
+	}
+
+	/**
+	 * @return Length of each downsampled period in milliseconds
+	 */
+	public long getPeriod() {
+		return period;
+	}
+}
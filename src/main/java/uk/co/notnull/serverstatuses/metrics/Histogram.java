@@ -0,0 +1,102 @@
+package uk.co.notnull.serverstatuses.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed bucket bounds, backed by striped counters so that recording never contends
+ */
+public final class Histogram {
+	private final long[] bounds;
+	private final LongAdder[] buckets;
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param bounds Inclusive upper bounds of each bucket in ascending order. An extra bucket is added for larger values.
+	 */
+	public Histogram(long... bounds) {
+		this.bounds = bounds.clone();
+		this.buckets = new LongAdder[bounds.length + 1];
+
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long value) {
+		int bucket = 0;
+
+		while (bucket < bounds.length && value > bounds[bucket]) {
+			bucket++;
+		}
+
+		buckets[bucket].increment();
+		sum.add(value);
+	}
+
+	public long[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * @return The count of each bucket, with the final entry being the count of values above the highest bound
+	 */
+	public long[] getCounts() {
+		long[] counts = new long[buckets.length];
+
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+		}
+
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count > 0 ? (double) getSum() / count : 0;
+	}
+
+	/**
+	 * Estimates a percentile as the upper bound of the bucket containing it
+	 * @param percentile The percentile, between 0 and 1
+	 * @return The estimate, or -1 if the percentile lies above the highest bound
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = getCounts();
+		long total = 0;
+
+		for (long count : counts) {
+			total += count;
+		}
+
+		if(total == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(total * percentile);
+		long seen = 0;
+
+		for (int i = 0; i < bounds.length; i++) {
+			seen += counts[i];
+
+			if(seen >= target) {
+				return bounds[i];
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,80 @@
+package uk.co.notnull.serverstatuses.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low overhead runtime metrics for the plugin
+ * All counters are striped, so recording from ping, websocket and informer threads never contends.
+ */
+public final class Metrics {
+	private static final long[] PAYLOAD_SIZE_BOUNDS = {128, 256, 512, 1024, 2048, 4096, 8192, 16384, 32768, 65536};
+
+	private final long startTime = System.currentTimeMillis();
+	private final ConcurrentHashMap<String, ServerMetrics> servers = new ConcurrentHashMap<>();
+
+	private final LongAdder statusChanges = new LongAdder();
+	private final LongAdder payloadsGenerated = new LongAdder();
+	private final Histogram payloadSize = new Histogram(PAYLOAD_SIZE_BOUNDS);
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+
+	public ServerMetrics getServerMetrics(String server) {
+		return servers.computeIfAbsent(server, (k) -> new ServerMetrics());
+	}
+
+	public Map<String, ServerMetrics> getServers() {
+		return Collections.unmodifiableMap(servers);
+	}
+
+	/**
+	 * Removes the metrics of servers that are no longer checked
+	 */
+	public void retain(Set<String> servers) {
+		this.servers.keySet().retainAll(servers);
+	}
+
+	public void recordStatusChange() {
+		statusChanges.increment();
+	}
+
+	public void recordPayloadGenerated(int bytes) {
+		payloadsGenerated.increment();
+		payloadSize.record(bytes);
+	}
+
+	public void recordPacketSent(int bytes) {
+		packetsSent.increment();
+		bytesSent.add(bytes);
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getStatusChanges() {
+		return statusChanges.sum();
+	}
+
+	public long getPayloadsGenerated() {
+		return payloadsGenerated.sum();
+	}
+
+	/**
+	 * @return Size histogram of generated payloads, in bytes
+	 */
+	public Histogram getPayloadSize() {
+		return payloadSize;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+}
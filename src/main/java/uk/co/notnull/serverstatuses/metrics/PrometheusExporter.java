@@ -0,0 +1,117 @@
+package uk.co.notnull.serverstatuses.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Serves metrics in the Prometheus text exposition format on a local port
+ */
+public final class PrometheusExporter {
+	private static final String PREFIX = "serverstatuses_";
+
+	private final Metrics metrics;
+	private final HttpServer server;
+
+	public PrometheusExporter(Metrics metrics, int port) throws IOException {
+		this.metrics = metrics;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+		server.createContext("/metrics", exchange -> {
+			byte[] response = scrape().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, response.length);
+
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(response);
+			}
+		});
+
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		Map<String, ServerMetrics> servers = metrics.getServers();
+
+		header(out, "ping_latency_seconds", "histogram", "Latency of successful server pings");
+		servers.forEach((name, server) -> histogram(out, "ping_latency_seconds", label(name),
+													server.getPingLatency(), 1000));
+
+		header(out, "ping_failures_total", "counter", "Failed or timed out server pings");
+		servers.forEach((name, server) -> sample(out, "ping_failures_total", label(name),
+												 server.getPingFailures()));
+
+		header(out, "websocket_reconnects_total", "counter", "Pterodactyl websocket reconnect attempts");
+		servers.forEach((name, server) -> sample(out, "websocket_reconnects_total", label(name),
+												 server.getReconnects()));
+
+		header(out, "websocket_reconnect_backoff_seconds", "gauge", "Current pterodactyl websocket reconnect backoff");
+		servers.forEach((name, server) -> sample(out, "websocket_reconnect_backoff_seconds", label(name),
+												 server.getReconnectBackoff()));
+
+		header(out, "status_changes_total", "counter", "Server status change events fired");
+		sample(out, "status_changes_total", "", metrics.getStatusChanges());
+
+		header(out, "payload_size_bytes", "histogram", "Size of generated status packet payloads");
+		histogram(out, "payload_size_bytes", "", metrics.getPayloadSize(), 1);
+
+		header(out, "packets_sent_total", "counter", "Status packets sent to informed servers");
+		sample(out, "packets_sent_total", "", metrics.getPacketsSent());
+
+		header(out, "packet_bytes_sent_total", "counter", "Bytes of status packets sent to informed servers");
+		sample(out, "packet_bytes_sent_total", "", metrics.getBytesSent());
+
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(PREFIX).append(name);
+
+		if(!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder out, String name, String labels, Histogram histogram, double scale) {
+		long[] bounds = histogram.getBounds();
+		long[] counts = histogram.getCounts();
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		long cumulative = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			String le = i < bounds.length ? String.valueOf(bounds[i] / scale) : "+Inf";
+			sample(out, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+		}
+
+		sample(out, name + "_sum", labels, histogram.getSum() / scale);
+		sample(out, name + "_count", labels, cumulative);
+	}
+
+	private static String label(String server) {
+		return "server=\"" + server.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n") + "\"";
+	}
+}
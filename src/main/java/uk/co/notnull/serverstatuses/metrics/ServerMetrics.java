@@ -0,0 +1,54 @@
+package uk.co.notnull.serverstatuses.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ping and websocket metrics for a single checked server
+ */
+public final class ServerMetrics {
+	private static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+	private final Histogram pingLatency = new Histogram(LATENCY_BOUNDS);
+	private final LongAdder pingFailures = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private volatile int reconnectBackoff = 0;
+
+	public void recordPing(long latencyMillis) {
+		pingLatency.record(latencyMillis);
+	}
+
+	public void recordPingFailure() {
+		pingFailures.increment();
+	}
+
+	public void recordReconnect(int backoffSeconds) {
+		reconnects.increment();
+		reconnectBackoff = backoffSeconds;
+	}
+
+	public void setReconnectBackoff(int backoffSeconds) {
+		reconnectBackoff = backoffSeconds;
+	}
+
+	/**
+	 * @return Latency histogram of successful pings, in milliseconds
+	 */
+	public Histogram getPingLatency() {
+		return pingLatency;
+	}
+
+	public long getPingFailures() {
+		return pingFailures.sum();
+	}
+
+	public long getReconnects() {
+		return reconnects.sum();
+	}
+
+	/**
+	 * @return The backoff in seconds before the next websocket reconnect, or 0 if not reconnecting
+	 */
+	public int getReconnectBackoff() {
+		return reconnectBackoff;
+	}
+}
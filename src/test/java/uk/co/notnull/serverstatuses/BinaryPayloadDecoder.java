@@ -0,0 +1,149 @@
+package uk.co.notnull.serverstatuses;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reference decoder for the binary payload format described in {@link PayloadEncoder}, as a backend server would
+ * implement it
+ */
+final class BinaryPayloadDecoder {
+	private static final String ALGORITHM = "HmacSHA512";
+	private static final int FLAG_DEFLATED = 1;
+	private static final int FLAG_INCREMENTAL = 2;
+	private static final int FLAG_DELTA = 4;
+
+	private BinaryPayloadDecoder() {
+	}
+
+	/**
+	 * Verifies and decodes a binary payload
+	 * @throws IllegalArgumentException If the payload is malformed or its hmac does not match
+	 */
+	static Payload decode(byte[] payload, byte[] secret) throws GeneralSecurityException, DataFormatException {
+		Mac hmac = Mac.getInstance(ALGORITHM);
+		hmac.init(new SecretKeySpec(secret, ALGORITHM));
+
+		int signedLength = payload.length - hmac.getMacLength();
+
+		if(signedLength < 2) {
+			throw new IllegalArgumentException("Payload too short");
+		}
+
+		hmac.update(payload, 0, signedLength);
+
+		if(!MessageDigest.isEqual(hmac.doFinal(), Arrays.copyOfRange(payload, signedLength, payload.length))) {
+			throw new IllegalArgumentException("Invalid hmac");
+		}
+
+		ByteArrayInputStream in = new ByteArrayInputStream(payload, 0, signedLength);
+		int version = in.read();
+
+		if(version != 1) {
+			throw new IllegalArgumentException("Unsupported version " + version);
+		}
+
+		int flags = in.read();
+		boolean incremental = (flags & FLAG_INCREMENTAL) != 0;
+		long seq = incremental ? readVarLong(in) : 0;
+		byte[] body = in.readAllBytes();
+
+		if((flags & FLAG_DEFLATED) != 0) {
+			body = inflate(body);
+		}
+
+		ByteArrayInputStream bodyIn = new ByteArrayInputStream(body);
+		String[] strings = new String[readVarInt(bodyIn)];
+
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = new String(bodyIn.readNBytes(readVarInt(bodyIn)), StandardCharsets.UTF_8);
+		}
+
+		int count = readVarInt(bodyIn);
+		Map<String, Entry> servers = new LinkedHashMap<>();
+
+		for (int i = 0; i < count; i++) {
+			String name = strings[readVarInt(bodyIn)];
+			Status status = Status.values()[bodyIn.read()];
+			int online = readVarInt(bodyIn);
+			int queued = readVarInt(bodyIn);
+			int lockdownIndex = readVarInt(bodyIn);
+			String line1 = strings[readVarInt(bodyIn)];
+			String line2 = strings[readVarInt(bodyIn)];
+
+			servers.put(name, new Entry(status, online, queued, lockdownIndex > 0 ? strings[lockdownIndex - 1] : null,
+										line1, line2));
+		}
+
+		if(bodyIn.available() > 0) {
+			throw new IllegalArgumentException("Trailing bytes in body");
+		}
+
+		return new Payload(incremental, (flags & FLAG_DELTA) != 0, (flags & FLAG_DEFLATED) != 0, seq, servers);
+	}
+
+	private static byte[] inflate(byte[] data) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		byte[] buffer = new byte[1024];
+
+		try {
+			inflater.setInput(data);
+
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+
+				if(inflated == 0 && inflater.needsInput()) {
+					throw new IllegalArgumentException("Truncated deflated body");
+				}
+
+				out.write(buffer, 0, inflated);
+			}
+		} finally {
+			inflater.end();
+		}
+
+		return out.toByteArray();
+	}
+
+	private static int readVarInt(ByteArrayInputStream in) {
+		return (int) readVarLong(in);
+	}
+
+	private static long readVarLong(ByteArrayInputStream in) {
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+
+			if(b < 0) {
+				throw new IllegalArgumentException("Truncated varint");
+			}
+
+			value |= (long) (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("Varint too long");
+	}
+
+	record Payload(boolean incremental, boolean delta, boolean deflated, long seq, Map<String, Entry> servers) {
+	}
+
+	record Entry(Status status, int playersOnline, int playersQueued, String lockdownReason, String line1,
+				 String line2) {
+	}
+}
@@ -0,0 +1,193 @@
+package uk.co.notnull.serverstatuses;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadEncoderTest {
+	private static final byte[] secret = "test-secret".getBytes(StandardCharsets.UTF_8);
+
+	@BeforeAll
+	static void loadMessages() throws IOException {
+		File messages = File.createTempFile("messages", ".yml");
+		messages.deleteOnExit();
+
+		try (InputStream in = PayloadEncoderTest.class.getClassLoader().getResourceAsStream("messages.yml")) {
+			Files.copy(in, messages.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		ServerStatuses.getMessagesHelper().loadMessages(messages);
+	}
+
+	static Map<String, ServerStatus> statuses() {
+		Map<String, ServerStatus> statuses = new LinkedHashMap<>();
+
+		statuses.put("lobby", ServerStatus.builder().status(Status.ONLINE).players(12)
+				.motd(Component.text("Welcome to the lobby", NamedTextColor.GOLD)).build());
+		statuses.put("survival", ServerStatus.builder().status(Status.OFFLINE).queued(3).build());
+		statuses.put("creative", ServerStatus.builder().status(Status.LOCKDOWN).players(4)
+				.lockdown("Maintenance").build());
+		statuses.put("events", ServerStatus.builder().status(Status.STARTING).queued(1)
+				.motd(Component.text("Events")).build());
+
+		return statuses;
+	}
+
+	/**
+	 * The json payload is signed by backend servers checking the hmac of the servers json, so it must match the
+	 * output of the original reflective encoder byte for byte
+	 */
+	@Test
+	void jsonPayloadMatchesBaseline() throws Exception {
+		Map<String, ServerStatus> statuses = statuses();
+		byte[] payload = new PayloadEncoder(secret, -1).encode(statuses, null, 0, PayloadEncoder.Format.JSON);
+
+		assertArrayEquals(BaselineEncoder.encode(statuses), payload);
+		assertEquals(BaselineEncoder.hmac(statuses), JsonParser.parseString(new String(payload, StandardCharsets.UTF_8))
+				.getAsJsonObject().get("hmac").getAsString());
+	}
+
+	@Test
+	void binaryPayloadRoundTrips() throws Exception {
+		Map<String, ServerStatus> statuses = statuses();
+		byte[] payload = new PayloadEncoder(secret, -1).encode(statuses, null, 0, PayloadEncoder.Format.BINARY);
+		BinaryPayloadDecoder.Payload decoded = BinaryPayloadDecoder.decode(payload, secret);
+
+		assertFalse(decoded.incremental());
+		assertFalse(decoded.deflated());
+		assertDecoded(statuses, decoded);
+	}
+
+	@Test
+	void deflatedIncrementalPayloadRoundTrips() throws Exception {
+		Map<String, ServerStatus> statuses = statuses();
+		byte[] payload = new PayloadEncoder(secret, 0)
+				.encode(statuses, PayloadEncoder.PacketType.DELTA, 300, PayloadEncoder.Format.BINARY);
+		BinaryPayloadDecoder.Payload decoded = BinaryPayloadDecoder.decode(payload, secret);
+
+		assertTrue(decoded.incremental());
+		assertTrue(decoded.delta());
+		assertTrue(decoded.deflated());
+		assertEquals(300, decoded.seq());
+		assertDecoded(statuses, decoded);
+	}
+
+	/**
+	 * The hmac covers the header as well as the body, so neither the flags nor the sequence number can be altered
+	 */
+	@Test
+	void binaryPayloadHmacCoversHeader() throws Exception {
+		byte[] payload = new PayloadEncoder(secret, -1)
+				.encode(statuses(), PayloadEncoder.PacketType.FULL, 5, PayloadEncoder.Format.BINARY);
+
+		for (int i : new int[] {1, 2, payload.length / 2}) {
+			byte[] tampered = payload.clone();
+			tampered[i] ^= 1;
+
+			assertThrows(IllegalArgumentException.class, () -> BinaryPayloadDecoder.decode(tampered, secret));
+		}
+
+		assertThrows(IllegalArgumentException.class,
+					 () -> BinaryPayloadDecoder.decode(payload, "other-secret".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static void assertDecoded(Map<String, ServerStatus> statuses, BinaryPayloadDecoder.Payload decoded) {
+		assertEquals(List.copyOf(statuses.keySet()), List.copyOf(decoded.servers().keySet()));
+
+		statuses.forEach((name, status) -> {
+			BinaryPayloadDecoder.Entry entry = decoded.servers().get(name);
+			String[] lines = status.getSeparateLines();
+
+			assertEquals(status.getStatus(), entry.status());
+			assertEquals(status.getPlayersOnline(), entry.playersOnline());
+			assertEquals(status.getPlayersQueued(), entry.playersQueued());
+			assertEquals(status.getLockdownReason(), entry.lockdownReason());
+			assertEquals(lines[0], entry.line1());
+			assertEquals(lines[1], entry.line2());
+		});
+	}
+
+	/**
+	 * The encoder used before payloads were cached, which serialised statuses reflectively with Gson
+	 */
+	private static final class BaselineEncoder {
+		private static final Gson gson = new GsonBuilder().create();
+
+		private static byte[] encode(Map<String, ServerStatus> statuses) throws Exception {
+			Map<String, Object> payload = Map.of(
+					"hmac", hmac(statuses),
+					"servers", serversJson(statuses)
+			);
+
+			return gson.toJson(payload).getBytes();
+		}
+
+		private static String hmac(Map<String, ServerStatus> statuses) throws Exception {
+			Mac hmac = Mac.getInstance("HmacSHA512");
+			hmac.init(new SecretKeySpec(secret, "HmacSHA512"));
+
+			byte[] macData = hmac.doFinal(serversJson(statuses).getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(macData.length * 2);
+
+			for (byte b : macData) {
+				sb.append(String.format("%02x", b));
+			}
+
+			return sb.toString();
+		}
+
+		private static String serversJson(Map<String, ServerStatus> statuses) {
+			Map<String, BaselineStatus> baseline = new LinkedHashMap<>();
+			statuses.forEach((name, status) -> baseline.put(name, new BaselineStatus(status)));
+
+			return gson.toJson(baseline);
+		}
+	}
+
+	/**
+	 * Mirrors the fields of ServerStatus before lines were rendered lazily, in the same declaration order
+	 */
+	@SuppressWarnings({"unused", "FieldCanBeLocal"})
+	private static final class BaselineStatus {
+		private final Status status;
+		private final int playersOnline;
+		private final int playersQueued;
+		private final String lockdownReason;
+		private final String[] separateLines;
+		private final String combinedLines;
+
+		private transient final Component motd;
+
+		private BaselineStatus(ServerStatus status) {
+			this.status = status.getStatus();
+			this.playersOnline = status.getPlayersOnline();
+			this.playersQueued = status.getPlayersQueued();
+			this.lockdownReason = status.getLockdownReason();
+			this.separateLines = status.getSeparateLines();
+			this.combinedLines = status.getCombinedLines();
+			this.motd = status.getMotd();
+		}
+	}
+}